@@ -26,7 +26,7 @@ methodBlock locals [String selector, List<String> args]
 // listeners for rule method can set these locals, rule methodBlock listeners can read
 // use locals not args so no antlr warnings.
 	:	'[' body ']'						# SmalltalkMethodBlock
-    |   '<' 'primitive:' SYMBOL '>'			# PrimitiveMethodBlock
+    |   '<' 'primitive:' SYMBOL '>' ('[' body ']')?	# PrimitiveMethodBlock // body runs if primitive fails
 	;
 
 localVars
@@ -6,6 +6,7 @@ import org.antlr.symtab.StringTable;
 import org.antlr.symtab.Symbol;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.misc.NotNull;
+import smalltalk.vm.Bytecode;
 import smalltalk.vm.primitive.Primitive;
 import smalltalk.vm.primitive.STCompiledBlock;
 import smalltalk.vm.primitive.STFloat;
@@ -16,6 +17,8 @@ import java.util.*;
  * {@link smalltalk.vm.primitive.STCompiledBlock}.
  */
 public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
+	private static final int JUMP_SIZE = Bytecode.sizeOfInstruction(Bytecode.JUMP);
+
 	public Scope currentScope;
 
 	/** With which compiler are we generating code? */
@@ -36,20 +39,37 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 	}
 
 	public LinkedHashMap<String, LinkedHashSet<String>> literals;				//To add unique literals and insert the literals in sequence so used LinkedHashSet
-	public HashMap<String, TreeSet<STCompiledBlock>> compiledBlocks;
+	/** The nested blocks of each method, in the order of their BLOCK indexes */
+	public HashMap<String, List<STCompiledBlock>> compiledBlocks;
 	public HashMap<String, Integer> nlocals;
 	public HashMap<String, Integer> nargs;
 	public final Map<Scope,StringTable> blockToStrings = new HashMap<>();
 	public boolean isPrimitive = false;
 	public String primitiveName;
-	public int blockNum;
+
+	/** Blocks open-coded into the method or block around them, mapped to the
+	 *  slot of their first argument or local in the enclosing context.
+	 */
+	public final Map<Scope,Integer> inlinedBlocks = new HashMap<>();
+	/** How many slots each method or block needs for the variables of
+	 *  blocks inlined into it; see {@link #allocateSlots}.
+	 */
+	public final Map<Scope,Integer> inlinedSlots = new HashMap<>();
+	/** The arguments and locals of each method or block that blocks nested
+	 *  in it refer to, by index; see {@link STCompiledBlock#capturedLocals}.
+	 */
+	public final Map<Scope,Set<Integer>> capturedLocals = new HashMap<>();
+	/** While compiling the blocks of a fallback send, the method or block
+	 *  whose context runs the open-coded message; see {@link #fallbackSend}.
+	 */
+	private Scope fallbackHost;
 
 	public CodeGenerator(Compiler compiler) {
 		this.compiler = compiler;
 		this.currentScope = compiler.symtab.GLOBALS;
 		this.literals = new LinkedHashMap<String, LinkedHashSet<String>>();
 		this.nlocals = new HashMap<String, Integer>();
-		this.compiledBlocks = new HashMap<String, TreeSet<STCompiledBlock>>();
+		this.compiledBlocks = new HashMap<String, List<STCompiledBlock>>();
 		this.nargs =  new HashMap<String, Integer>();
 	}
 
@@ -131,8 +151,13 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 	@Override
 	public Code visitBlock(SmalltalkParser.BlockContext ctx) {
 		pushScope(ctx.scope);
-		int temp = blockNum++;
-		String scopeName = extractScopeName(ctx.scope);
+		// compiled as a block of its own here, even if also open-coded elsewhere
+		inlinedBlocks.remove(ctx.scope);
+		inlinedSlots.remove(ctx.scope);
+		capturedLocals.remove(ctx.scope);
+		List<STCompiledBlock> blocks = compiledBlocks.computeIfAbsent(extractScopeName(ctx.scope), k -> new ArrayList<>());
+		int temp = blocks.size();
+		blocks.add(null); // reserve the index; nested blocks get the ones after
 		Code e= Code.None;
 		if(ctx.blockArgs() != null)
 			e = visit(ctx.blockArgs());
@@ -142,15 +167,7 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 		}
 		code = code.join(Compiler.push_block_return());
 		ctx.scope.compiledBlock = getCompiledBlock(ctx.scope, code);
-		/***** Map/ Add the Compiled Block code in the specified scope block ****/
-		if(compiledBlocks.containsKey(scopeName)){
-			compiledBlocks.get(scopeName).add(getCompiledBlock(ctx.scope, code));
-		}
-		else{
-			TreeSet<STCompiledBlock> stCompiledBlocks = new TreeSet<>();
-			stCompiledBlocks.add(getCompiledBlock(ctx.scope, code));
-			compiledBlocks.put(scopeName, stCompiledBlocks);
-		}
+		blocks.set(temp, ctx.scope.compiledBlock);
 		popScope();
 
 		return Compiler.push_block(temp);
@@ -158,8 +175,8 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 
 	@Override
 	public Code visitUnarySuperMsgSend(SmalltalkParser.UnarySuperMsgSendContext ctx) {
-		setLiterals(currentScope.getName(), ctx.ID().getText());
-		int index = findIndex(literals.get(currentScope.getName()), ctx.ID().getText());
+		setLiterals(literalScopeName(), ctx.ID().getText());
+		int index = findIndex(literals.get(literalScopeName()), ctx.ID().getText());
 		Code code = Compiler.push_self();
 		if(compiler.genDbg)
 			code = code.join(Compiler.push_send_super(0, index+1));
@@ -190,10 +207,11 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 	@Override
 	public Code visitOperatorMethod(SmalltalkParser.OperatorMethodContext ctx) {
 		isPrimitive = false;
-		blockNum = 0;
+		compiledBlocks.remove(ctx.scope.getName());
 		pushScope(ctx.scope);
 		nlocals.put(ctx.scope.getName(), 0);
 		Code code = visit(ctx.methodBlock());
+		nargs.put(ctx.scope.getName(), 1);
 		ctx.scope.compiledBlock = getCompiledBlock(ctx.scope, code);
 		popScope();
 
@@ -203,7 +221,7 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 	@Override
 	public Code visitNamedMethod(SmalltalkParser.NamedMethodContext ctx) {
 		isPrimitive = false;
-		blockNum = 0;
+		compiledBlocks.remove(ctx.scope.getName());
 		pushScope(ctx.scope);
 		nlocals.put(ctx.scope.getName(), 0);
 		Code code = visit(ctx.methodBlock());
@@ -216,7 +234,7 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 	@Override
 	public Code visitKeywordMethod(SmalltalkParser.KeywordMethodContext ctx) {
 		isPrimitive = false;
-		blockNum = 0;
+		compiledBlocks.remove(ctx.scope.getName());
 		pushScope(ctx.scope);
 		nlocals.put(ctx.scope.getName(), 0);
 		Code code = visit(ctx.methodBlock());
@@ -230,8 +248,8 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 	@Override
 	public Code visitUnaryMsgSend(SmalltalkParser.UnaryMsgSendContext ctx) {
 		Code code = visit(ctx.unaryExpression());
-		setLiterals(currentScope.getName(), ctx.ID().getText());
-		int index = findIndex(literals.get(currentScope.getName()), ctx.ID().getText());
+		setLiterals(literalScopeName(), ctx.ID().getText());
+		int index = findIndex(literals.get(literalScopeName()), ctx.ID().getText());
 		if(compiler.genDbg)
 			code = code.join(Compiler.push_send(0, index+1));
 		else
@@ -261,11 +279,15 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 
 	@Override
 	public Code visitPrimitiveMethodBlock(@NotNull SmalltalkParser.PrimitiveMethodBlockContext ctx) {
+		Code code = Code.None;
+		if ( ctx.body()!=null ) { // fallback code, run when the primitive fails
+			code = methodBody(visit(ctx.body()), ctx.body(), ctx.stop);
+		}
 		isPrimitive = true;
 		nargs.put(currentScope.getName(), ctx.args.size());
 		primitiveName = ctx.selector;
 
-		return Code.None;
+		return code;
 	}
 
 
@@ -279,13 +301,17 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 
 	@Override
 	public Code visitKeywordSend(SmalltalkParser.KeywordSendContext ctx) {
+		if ( compiler.inlineControlFlow && fallbackHost==null && ctx.args.size()!=0 ) {
+			Code inlined = inlineControlFlow(ctx);
+			if ( inlined!=null ) return inlined;
+		}
 		int index;
 		Code code = Code.None;
 		for(SmalltalkParser.BinaryExpressionContext bec: ctx.binaryExpression())
 			code = code.join(visit(bec));
 		if(ctx.args.size() != 0){
 			int args = ctx.args.size();
-			String scopeName = currentScope.getName();
+			String scopeName = literalScopeName();
 			String keywords = "";
 			for(int i=0; i<ctx.KEYWORD().size(); i++){
 				keywords = keywords + ctx.KEYWORD().get(i).toString();
@@ -304,6 +330,234 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 		return code;
 	}
 
+	/** Open-code ifTrue:, ifFalse:, ifTrue:ifFalse:, and:, or:, whileTrue:
+	 *  and to:do: when the blocks they take are literal blocks. The blocks'
+	 *  code goes inline, joined by jumps, and runs in the context of the
+	 *  code around it, so neither block descriptors nor contexts are created.
+	 *  A conditional jump names the selector it replaces. If the condition
+	 *  of a conditional isn't a Boolean, the VM performs that message instead
+	 *  with {@link #fallbackSend}; a loop's condition has to be a Boolean.
+	 *
+	 *  Return null if ctx doesn't qualify and must be compiled as a send.
+	 */
+	protected Code inlineControlFlow(SmalltalkParser.KeywordSendContext ctx) {
+		String selector = "";
+		for(int i=0; i<ctx.KEYWORD().size(); i++){
+			selector = selector + ctx.KEYWORD().get(i).toString();
+		}
+		Token keyword = ctx.KEYWORD(0).getSymbol();
+		SmalltalkParser.BlockContext blk;
+		switch ( selector ) {
+			case "ifTrue:" :
+			case "ifFalse:" :
+			case "and:" :
+			case "or:" :
+				blk = literalBlock(ctx.args.get(0), 0);
+				if ( blk==null ) return null;
+				boolean jumpIfTrue = selector.equals("ifFalse:") || selector.equals("or:");
+				Code otherwise;
+				switch ( selector ) {
+					case "and:" : otherwise = Compiler.push_false(); break;
+					case "or:" : otherwise = Compiler.push_true(); break;
+					default : otherwise = Compiler.push_nil(); break;
+				}
+				Code cond = visit(ctx.recv);
+				Code then = inlineBlock(blk);
+				return inlineConditional(cond, jumpIfTrue, selector, keyword, then,
+										 fallbackSend(selector, keyword, blk), otherwise);
+			case "ifTrue:ifFalse:" :
+				blk = literalBlock(ctx.args.get(0), 0);
+				SmalltalkParser.BlockContext elseBlk = literalBlock(ctx.args.get(1), 0);
+				if ( blk==null || elseBlk==null ) return null;
+				cond = visit(ctx.recv);
+				then = inlineBlock(blk);
+				Code fallback = fallbackSend(selector, keyword, blk, elseBlk);
+				return inlineConditional(cond, false, selector, keyword, then, fallback, inlineBlock(elseBlk));
+			case "whileTrue:" :
+				SmalltalkParser.BlockContext condBlk = literalBlock(ctx.recv, 0);
+				blk = literalBlock(ctx.args.get(0), 0);
+				if ( condBlk==null || blk==null ) return null;
+				cond = inlineBlock(condBlk);
+				Code body = Code.join(inlineBlock(blk), Compiler.pop());
+				Code test = Code.join(cond, dbgAt(keyword),
+									  Compiler.jump_if_false(body.size() + JUMP_SIZE, literalIndex(selector), 0));
+				return Code.join(test, body,
+								 Compiler.jump(-(test.size() + body.size() + JUMP_SIZE)),
+								 Compiler.push_nil());
+			case "to:do:" :
+				blk = literalBlock(ctx.args.get(1), 1);
+				if ( blk==null ) return null;
+				// leaves the receiver on the stack as the value of the loop
+				Code init = visit(ctx.recv);
+				Code limit = visit(ctx.args.get(0));
+				body = inlineBlock(blk);
+				int i = inlinedBlocks.get(blk.scope); // the block argument
+				int limitSlot = allocateSlots(contextScope(currentScope), 1);
+				int le = literalIndex("<=");
+				int plus = literalIndex("+");
+				init = Code.join(init, Compiler.push_store_local(0, i),
+								 limit, Compiler.push_store_local(0, limitSlot), Compiler.pop());
+				Code step = Code.join(body, Compiler.pop(),
+									  Compiler.push_local(0, i), Compiler.push_int(1), dbgAt(keyword),
+									  Compiler.push_send(1, plus),
+									  Compiler.push_store_local(0, i), Compiler.pop());
+				test = Code.join(Compiler.push_local(0, i), Compiler.push_local(0, limitSlot), dbgAt(keyword),
+								 Compiler.push_send(1, le),
+								 Compiler.jump_if_false(step.size() + JUMP_SIZE, literalIndex(selector), 0));
+				return Code.join(init, test, step,
+								 Compiler.jump(-(test.size() + step.size() + JUMP_SIZE)));
+		}
+		return null;
+	}
+
+	/** cond, then thenCode if cond is !jumpIfTrue else elseCode. The
+	 *  fallback send sits between them, out of the way of both.
+	 */
+	private Code inlineConditional(Code cond, boolean jumpIfTrue, String selector, Token keyword,
+								   Code thenCode, Code fallback, Code elseCode)
+	{
+		int skipThen = thenCode.size() + JUMP_SIZE;
+		fallback = Code.join(fallback, Compiler.jump(elseCode.size()));
+		int lit = literalIndex(selector);
+		return Code.join(cond, dbgAt(keyword),
+						 jumpIfTrue ?
+							 Compiler.jump_if_true(skipThen + fallback.size(), lit, skipThen) :
+							 Compiler.jump_if_false(skipThen + fallback.size(), lit, skipThen),
+						 thenCode,
+						 Compiler.jump(fallback.size() + elseCode.size()),
+						 fallback,
+						 elseCode);
+	}
+
+	/** The send of selector that open-coded control flow falls back on when
+	 *  its condition isn't a Boolean, with the condition, left on the stack
+	 *  by the VM, as receiver and blks compiled as ordinary blocks, without
+	 *  open-coding within them. Their code reaches the variables of the
+	 *  context running the open-coded message at scope delta 1, but that
+	 *  doesn't make them captured: the VM copies them into the context's
+	 *  temp vector only for the send.
+	 */
+	private Code fallbackSend(String selector, Token keyword, SmalltalkParser.BlockContext... blks) {
+		Scope host = fallbackHost;
+		fallbackHost = contextScope(currentScope);
+		Code code = Code.None;
+		for (SmalltalkParser.BlockContext blk : blks) {
+			code = Code.join(code, visitBlock(blk));
+		}
+		fallbackHost = host;
+		return Code.join(code, dbgAt(keyword), Compiler.push_send(blks.length, literalIndex(selector)));
+	}
+
+	/** If e is just a literal block with nargs arguments, return it. */
+	private SmalltalkParser.BlockContext literalBlock(SmalltalkParser.BinaryExpressionContext e, int nargs) {
+		if ( e.unaryExpression().size()!=1 ||
+			 !(e.unaryExpression(0) instanceof SmalltalkParser.UnaryIsPrimaryContext) )
+		{
+			return null;
+		}
+		SmalltalkParser.BlockContext blk =
+			((SmalltalkParser.UnaryIsPrimaryContext)e.unaryExpression(0)).primary().block();
+		if ( blk==null ) return null;
+		int n = blk.blockArgs()!=null ? blk.blockArgs().ID().size() : 0;
+		return n==nargs ? blk : null;
+	}
+
+	/** Generate the body of blk to run in the current context, giving its
+	 *  arguments and locals slots there. The locals are reset to nil on
+	 *  entry, as they would be in a new block context. Leaves the value
+	 *  of the block on the stack.
+	 */
+	private Code inlineBlock(SmalltalkParser.BlockContext blk) {
+		inlinedBlocks.put(blk.scope, allocateSlots(contextScope(currentScope), countVariables(blk.scope)));
+		pushScope(blk.scope);
+		Code code = Code.None;
+		for (Symbol s : blk.scope.getSymbols()) {
+			if ( s instanceof STVariable ) {
+				code = Code.join(code, Compiler.push_nil(), Compiler.push_store_local(0, localIndex(s)), Compiler.pop());
+			}
+		}
+		if ( blk.body() instanceof SmalltalkParser.FullBodyContext ) {
+			code = Code.join(code, visit(blk.body()));
+		}
+		else {
+			code = Code.join(code, Compiler.push_nil());
+		}
+		popScope();
+
+		return code;
+	}
+
+	/** Reserve n more local slots in the context of method or block scope
+	 *  and return the index of the first.
+	 */
+	private int allocateSlots(Scope scope, int n) {
+		int used = inlinedSlots.getOrDefault(scope, 0);
+		inlinedSlots.put(scope, used + n);
+		return countVariables(scope) + used;
+	}
+
+	private static int countVariables(Scope scope) {
+		int n = 0;
+		for (Symbol s : scope.getSymbols()) {
+			if ( s instanceof STArg || s instanceof STVariable ) n++;
+		}
+		return n;
+	}
+
+	/** The method or block whose context runs code in scope s */
+	private Scope contextScope(Scope s) {
+		while ( inlinedBlocks.containsKey(s) ) {
+			s = s.getEnclosingScope();
+		}
+		return s;
+	}
+
+	/** How many contexts out from the current one does local s live? */
+	private int contextDepth(Symbol s) {
+		Scope target = contextScope(s.getScope());
+		Scope scope = contextScope(currentScope);
+		int d = 0;				//this is delta from current scope to s.scope
+		while(!target.equals(scope)){
+			scope = contextScope(scope.getEnclosingScope());
+			d++;
+		}
+		return d;
+	}
+
+	/** Push or store local s, noting it as captured if it belongs to an
+	 *  enclosing context.
+	 */
+	private Code localAccess(Symbol s, boolean store) {
+		int d = contextDepth(s);
+		int i = localIndex(s);
+		if ( d>0 && contextScope(s.getScope())!=fallbackHost ) {
+			capturedLocals.computeIfAbsent(contextScope(s.getScope()), k -> new TreeSet<>()).add(i);
+		}
+		return store ? Compiler.push_store_local(d, i) : Compiler.push_local(d, i);
+	}
+
+	/** Index of argument or local s within the locals of its context */
+	private int localIndex(Symbol s) {
+		Integer base = inlinedBlocks.get(s.getScope());
+		int i = s.getInsertionOrderNumber();
+		return base!=null ? base + i : i;
+	}
+
+	/** Literals go to the compiled block that runs the current code */
+	private String literalScopeName() {
+		return contextScope(currentScope).getName();
+	}
+
+	private int literalIndex(String literal) {
+		setLiterals(literalScopeName(), literal);
+		int index = findIndex(literals.get(literalScopeName()), literal);
+		return compiler.genDbg ? index+1 : index;
+	}
+
+	private Code dbgAt(Token t) {
+		return compiler.genDbg ? dbg(t) : Code.None;
+	}
+
 	@Override
 	public Code visitBinaryExpression(SmalltalkParser.BinaryExpressionContext ctx) {
 		Code code = Code.None;
@@ -326,7 +580,7 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 	@Override
 	public Code visitBop(SmalltalkParser.BopContext ctx) {
 		Code code = Code.None;
-		String scopeName = currentScope.getName();
+		String scopeName = literalScopeName();
 		setLiterals(scopeName, ctx.getText());
 		int index = findIndex(literals.get(scopeName), ctx.getText());
 		if ( compiler.genDbg )
@@ -341,25 +595,33 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 	public Code visitSmalltalkMethodBlock(SmalltalkParser.SmalltalkMethodBlockContext ctx) {
 
 		SmalltalkParser.MethodContext methodNode = (SmalltalkParser.MethodContext)ctx.getParent();
-		Code code = visitChildren(ctx);
+		Code code = methodBody(visitChildren(ctx), ctx.body(), ctx.stop);
+		methodNode.scope.compiledBlock = getCompiledBlock(methodNode.scope, code);
+
+		return code;
+	}
+
+	/** Finish the code for the body of a method: methods without ^ return self */
+	private Code methodBody(Code code, SmalltalkParser.BodyContext body, Token stop) {
 		if ( compiler.genDbg ) {
-			code = Code.join(code, dbgAtEndBlock(ctx.stop));
+			code = Code.join(code, dbgAtEndBlock(stop));
 		}
-		if ( ctx.body() instanceof SmalltalkParser.FullBodyContext ) {
+		if ( body instanceof SmalltalkParser.FullBodyContext ) {
 			code = code.join(Compiler.pop()); // visitFullBody() doesn't have last pop; we toss here but use with block_return in visitBlock
 		}
 		code = code.join(Compiler.push_self());
-		code = code.join(Compiler.method_return());
-		methodNode.scope.compiledBlock = getCompiledBlock(methodNode.scope, code);
-
-		return code;
+		return code.join(Compiler.method_return());
 	}
 
 	private STCompiledBlock getCompiledBlock(STBlock scope, Code code) {
 		STCompiledBlock stCompiledBlock = new STCompiledBlock(scope);
 		stCompiledBlock.bytecode = code.bytes();
+		stCompiledBlock.maxStack = maxStack(stCompiledBlock.bytecode);
 		stCompiledBlock.isClassMethod = isClassMethod;
 		if(isPrimitive){
+			if ( scope instanceof STPrimitiveMethod ) {
+				stCompiledBlock.primitiveName = ((STPrimitiveMethod)scope).primitive.name();
+			}
 			stCompiledBlock.name = primitiveName;
 			stCompiledBlock.qualifiedName = scope.getEnclosingScope().getName() + ">>" + primitiveName;
 		}
@@ -367,13 +629,15 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 			stCompiledBlock.name = scope.getName();
 			stCompiledBlock.qualifiedName = scope.getQualifiedName(">>");
 		}
-		if(isClassMethod)
-			stCompiledBlock.name = "static " + stCompiledBlock.name;
 		if(nlocals.get(scope.getName()) != null){
 			stCompiledBlock.nlocals = nlocals.get(scope.getName());
 		}
 		else
 			stCompiledBlock.nlocals = 0;
+		stCompiledBlock.nlocals += inlinedSlots.getOrDefault(scope, 0);
+		if ( capturedLocals.containsKey(scope) ) {
+			stCompiledBlock.capturedLocals = capturedLocals.get(scope).stream().mapToInt(Integer::intValue).toArray();
+		}
 		int i;
 		if(literals.get(scope.getName()) != null){
 			LinkedHashSet<String> literalsCompiledBlock = literals.get(scope.getName());
@@ -398,7 +662,7 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 				stCompiledBlock.literals = new String[0];
 		}
 		if(compiledBlocks.get(scope.getName()) != null){
-			TreeSet<STCompiledBlock> stCompiledBlocks = compiledBlocks.get(scope.getName());
+			List<STCompiledBlock> stCompiledBlocks = compiledBlocks.get(scope.getName());
 			stCompiledBlock.blocks = new STCompiledBlock[stCompiledBlocks.size()];
 			i = 0;
 			for(STCompiledBlock stCompiledBlock1: stCompiledBlocks){
@@ -415,6 +679,82 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 		return stCompiledBlock;
 	}
 
+	/** Return the deepest the operand stack gets while executing code,
+	 *  following both ways out of every conditional jump. Code that can't
+	 *  be reached, like the epilogue after a ^ at the end of a method,
+	 *  doesn't count.
+	 */
+	public static int maxStack(byte[] code) {
+		int[] depthAt = new int[code.length];
+		Arrays.fill(depthAt, -1);
+		Deque<Integer> work = new ArrayDeque<>();
+		if ( code.length>0 ) {
+			depthAt[0] = 0;
+			work.push(0);
+		}
+		int max = 0;
+		while ( !work.isEmpty() ) {
+			int ip = work.pop();
+			int depth = depthAt[ip];
+			while ( ip<code.length ) {
+				int op = code[ip];
+				int next = ip + Bytecode.sizeOfInstruction(op);
+				switch ( op ) {
+					case Bytecode.NIL :
+					case Bytecode.SELF :
+					case Bytecode.TRUE :
+					case Bytecode.FALSE :
+					case Bytecode.PUSH_CHAR :
+					case Bytecode.PUSH_INT :
+					case Bytecode.PUSH_FLOAT :
+					case Bytecode.PUSH_FIELD :
+					case Bytecode.PUSH_LOCAL :
+					case Bytecode.PUSH_LITERAL :
+					case Bytecode.PUSH_GLOBAL :
+					case Bytecode.BLOCK :
+						depth++;
+						break;
+					case Bytecode.PUSH_ARRAY :
+						depth += 1 - Bytecode.getShort(code, ip+1);
+						break;
+					case Bytecode.POP :
+						depth--;
+						break;
+					case Bytecode.SEND :
+					case Bytecode.SEND_SUPER :
+						depth -= Bytecode.getShort(code, ip+1); // receiver and args replaced by result
+						break;
+					case Bytecode.JUMP :
+						next += Bytecode.getInt(code, ip+1);
+						break;
+					case Bytecode.JUMP_IF_TRUE :
+					case Bytecode.JUMP_IF_FALSE :
+						int fallback = Bytecode.getInt(code, ip+7);
+						if ( fallback!=0 && depthAt[next + fallback]<0 ) { // still holds the condition
+							depthAt[next + fallback] = depth;
+							work.push(next + fallback);
+						}
+						depth--;
+						int target = next + Bytecode.getInt(code, ip+1);
+						if ( depthAt[target]<0 ) {
+							depthAt[target] = depth;
+							work.push(target);
+						}
+						break;
+					case Bytecode.RETURN :
+					case Bytecode.BLOCK_RETURN :
+						next = code.length;
+						break;
+				}
+				max = Math.max(max, depth);
+				if ( next>=code.length || depthAt[next]>=0 ) break;
+				depthAt[next] = depth;
+				ip = next;
+			}
+		}
+		return max;
+	}
+
 	@Override
 	public Code visitAssign(SmalltalkParser.AssignContext ctx) {
 		Code e = visit(ctx.messageExpression());
@@ -435,14 +775,7 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 		}
 		else{
 			if(s instanceof STVariable || s instanceof STArg){				//Inserted s instanceof STArg
-				Scope scope = currentScope;
-				int i = s.getInsertionOrderNumber();
-				int d = 0;				//this is delta from current scope to s.scope
-				while(!s.getScope().equals(scope)){
-					scope = scope.getEnclosingScope();
-					d++;
-				}
-				return Compiler.push_store_local(d, i);
+				return localAccess(s, true);
 			}
 			else{
 				return Code.None;
@@ -453,15 +786,7 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 	@Override
 	public Code visitId(SmalltalkParser.IdContext ctx) {
 		if(ctx.sym instanceof STVariable){
-			int local = ctx.sym.getInsertionOrderNumber();
-			Scope scope = currentScope;
-			int d = 0;
-			while(!ctx.sym.getScope().equals(scope)){
-				scope = scope.getEnclosingScope();
-				d++;
-			}
-
-			return Compiler.push_local(d, local);
+			return localAccess(ctx.sym, false);
 		}
 		else{
 			if(ctx.sym instanceof STField){
@@ -470,20 +795,12 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 			else
 			{
 				if(ctx.sym instanceof STArg){
-					int local = ctx.sym.getInsertionOrderNumber();
-					Scope scope = currentScope;
-					int d = 0;
-					while(!ctx.sym.getScope().equals(scope)){
-						scope = scope.getEnclosingScope();
-						d++;
-					}
-
-					return Compiler.push_local(d, local);
+					return localAccess(ctx.sym, false);
 				}
 				else
 				{
 					int index = 0;
-					String scopeName = currentScope.getName();
+					String scopeName = literalScopeName();
 					setLiterals(scopeName, ctx.ID().getText());
 					index = findIndex(literals.get(scopeName), ctx.ID().getText());
 					if(compiler.genDbg)
@@ -505,7 +822,7 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 
 	@Override
 	public Code visitLiteral(SmalltalkParser.LiteralContext ctx) {
-		String scopeName = currentScope.getName();
+		String scopeName = literalScopeName();
 
 		if(ctx.getText().equals("nil"))
 			return Compiler.push_nil();
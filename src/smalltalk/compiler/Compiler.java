@@ -30,6 +30,7 @@ public class Compiler {
 	protected SmalltalkParser.FileContext fileTree;
 	protected String fileName;
 	public boolean genDbg; // generate dbg file,line instructions
+	public boolean inlineControlFlow = true; // open-code ifTrue:, whileTrue:, to:do: etc. with jumps
 
 	public Compiler() {
 		symtab = new STSymbolTable();
@@ -78,6 +79,9 @@ public class Compiler {
 	public static Code push_int(int v) 			{ return Code.of(Bytecode.PUSH_INT).join(Utils.intToBytes(v)); }
 	public static Code push_true() 				{ return Code.of(Bytecode.TRUE); }
 	public static Code push_false() 				{ return Code.of(Bytecode.FALSE); }
+	public static Code jump(int offset) 			{ return Code.of(Bytecode.JUMP).join(Utils.intToBytes(offset)); }
+	public static Code jump_if_true(int offset, int i, int fallback) 	{ return Code.of(Bytecode.JUMP_IF_TRUE).join(Utils.intToBytes(offset)).join(Utils.shortToBytes(i)).join(Utils.intToBytes(fallback)); }
+	public static Code jump_if_false(int offset, int i, int fallback) { return Code.of(Bytecode.JUMP_IF_FALSE).join(Utils.intToBytes(offset)).join(Utils.shortToBytes(i)).join(Utils.intToBytes(fallback)); }
 
 	// Error support
 
@@ -134,7 +138,14 @@ public class Compiler {
 
 	public STMethod createPrimitiveMethod(STClass currentScope, String selector, String primitiveName, SmalltalkParser.MethodContext methodNode)
 	{
-		STMethod stMethod = new STMethod(primitiveName, methodNode);
+		STMethod stMethod;
+		try {
+			stMethod = new STPrimitiveMethod(selector, methodNode, primitiveName);
+		}
+		catch (IllegalArgumentException iae) {
+			error("unknown primitive "+primitiveName+" for "+selector+" in "+currentScope.getName());
+			stMethod = new STMethod(selector, methodNode);
+		}
 		currentScope.define(stMethod);
 		return stMethod;
 	}
@@ -138,7 +138,12 @@ public class DefineSymbols extends SmalltalkBaseListener {
 		compiler.defineArguments(m, ctx.args);
 		methodNode.scope = m;
 		currentMethod = m;
-		// no need to push; no body for primitives.
+		if ( ctx.body()!=null ) pushScope(m); // the fallback body, run if the primitive fails
+	}
+
+	@Override
+	public void exitPrimitiveMethodBlock(SmalltalkParser.PrimitiveMethodBlockContext ctx) {
+		if ( ctx.body()!=null ) popScope();
 	}
 
 	@Override
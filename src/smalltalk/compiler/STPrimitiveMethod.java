@@ -8,6 +8,9 @@ import smalltalk.vm.primitive.Primitive;
  *  primitive routine removes the message receiver and arguments from
  *  the stack and replaces them with the appropriate result."
  *  BlueBook p 634 in pdf.
+ *
+ *  The method may also have a body, which runs like any other method if
+ *  the primitive fails.
  */
 public class STPrimitiveMethod extends STMethod {
 	public final Primitive primitive;
@@ -16,7 +19,4 @@ public class STPrimitiveMethod extends STMethod {
 		super(name, tree);
 		this.primitive = Enum.valueOf(Primitive.class, primitiveName);
 	}
-
-	@Override
-	public int nlocals() { return 0; }
 }
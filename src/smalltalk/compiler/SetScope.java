@@ -49,6 +49,19 @@ public class SetScope extends SmalltalkBaseListener {
 		popScope();
 	}
 
+	@Override
+	public void enterPrimitiveMethodBlock(@NotNull SmalltalkParser.PrimitiveMethodBlockContext ctx) {
+		if ( ctx.body()==null ) return;
+		SmalltalkParser.MethodContext methodNode = (SmalltalkParser.MethodContext)ctx.getParent();
+		pushScope(methodNode.scope);
+	}
+
+	@Override
+	public void exitPrimitiveMethodBlock(@NotNull SmalltalkParser.PrimitiveMethodBlockContext ctx) {
+		if ( ctx.body()==null ) return;
+		popScope();
+	}
+
 	@Override
 	public void enterBlock(@NotNull SmalltalkParser.BlockContext ctx) {
 		pushScope(ctx.scope);
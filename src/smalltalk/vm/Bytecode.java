@@ -71,6 +71,15 @@ public class Bytecode {
 	public static final short STORE_LOCAL 			= 19;
 	public static final short POP					= 20;
 
+	// Open-coded control flow. ADDR operands are signed byte offsets from
+	// the end of the jump instruction. Conditional jumps pop the condition and
+	// name the selector they stand in for. If the condition isn't a Boolean,
+	// they go to their second address instead, where the compiler put that
+	// message as an ordinary send; offset 0 means there is no such send.
+	public static final short JUMP					= 21;
+	public static final short JUMP_IF_TRUE			= 22;
+	public static final short JUMP_IF_FALSE			= 23;
+
 	public static final short SEND					= 25;
 	public static final short SEND_SUPER			= 26;
 	public static final short BLOCK					= 27;
@@ -79,6 +88,46 @@ public class Bytecode {
 
 	public static final short DBG					= 30;
 
+	// SUPERINSTRUCTIONS. These never appear in byte[] code; STCompiledBlock.decode()
+	// writes them over the opcode of the first instruction of a common pair or
+	// triple in the decoded int[] code. The component instructions stay in place
+	// after the first one so their operands, addresses and traces are unchanged.
+	// Chosen from static pair counts over image.st, linkedlist.st and dict.st.
+	public static final short POP_SELF_RETURN		= 40; // method epilogue
+	public static final short STORE_LOCAL_POP		= 41;
+	public static final short STORE_FIELD_POP		= 42;
+	public static final short PUSH_LOCAL_SEND		= 43;
+	public static final short SELF_SEND				= 44;
+	public static final short PUSH_INT_SEND			= 45;
+	public static final short PUSH_FIELD_RETURN		= 46; // getters
+
+	// QUICKENED SENDS. Also found only in decoded code: once a SEND site has been
+	// monomorphic on one of these primitives for a few sends, the VM rewrites
+	// its opcode so later executions run the primitive inline under a type
+	// guard, reverting to SEND if the guard fails. Operands are those of SEND.
+	public static final short SEND_INT_ADD			= 50;
+	public static final short SEND_INT_SUB			= 51;
+	public static final short SEND_INT_LT			= 52;
+	public static final short SEND_INT_LE			= 53;
+	public static final short SEND_INT_EQ			= 54;
+	public static final short SEND_ARRAY_AT			= 55;
+	public static final short SEND_ARRAY_AT_PUT		= 56;
+	public static final short SEND_BLOCK_VALUE		= 57;
+
+	// TEMP VECTOR ACCESS. Also found only in decoded code: decode() rewrites
+	// PUSH_LOCAL and STORE_LOCAL of a variable that a nested block refers to,
+	// which lives in a temp vector rather than a frame. Operands are those of
+	// the local access; scope delta 0 is the context's own vector and d>0
+	// the vector of the context d scopes out, carried by the block descriptor.
+	public static final short PUSH_TEMP				= 58;
+	public static final short STORE_TEMP			= 59;
+
+	// Also found only in decoded code: decode() rewrites the JUMP that ends the
+	// send a conditional jump falls back on. The send's blocks reached the
+	// context's variables through its temp vector; this copies them back
+	// into the frame before jumping. Operand is that of JUMP.
+	public static final short JUMP_RESTORE_LOCALS	= 60;
+
 	/** Used for disassembly; describes instruction set */
 	public static final Instruction[] instructions = new Instruction[] {
 		null, // <INVALID>
@@ -100,8 +149,11 @@ public class Bytecode {
 		new Instruction("store_field", OperandType.SHORT),
 		new Instruction("store_local", OperandType.SHORT, OperandType.SHORT),
 		new Instruction("pop"),
+		new Instruction("jump", OperandType.ADDR),
+		new Instruction("jump_if_true", OperandType.ADDR, OperandType.LITERAL, OperandType.ADDR),
+		new Instruction("jump_if_false", OperandType.ADDR, OperandType.LITERAL, OperandType.ADDR),
 
-		null, null, null, null, 		// leave room for gap in ints
+		null, 							// leave room for gap in ints
 
 		new Instruction("send", OperandType.SHORT, OperandType.LITERAL),
 		new Instruction("send_super", OperandType.SHORT, OperandType.LITERAL),
@@ -110,8 +162,65 @@ public class Bytecode {
 		new Instruction("return"),
 
 		new Instruction("dbg", OperandType.LITERAL, OperandType.DBG_LOCATION), // filename, line:charpos in file
+
+		null, null, null, null, null, null, null, null, null,	// leave room for gap in ints
+
+		// superinstructions; operands belong to the component instructions
+		new Instruction("pop_self_return"),
+		new Instruction("store_local_pop"),
+		new Instruction("store_field_pop"),
+		new Instruction("push_local_send"),
+		new Instruction("self_send"),
+		new Instruction("push_int_send"),
+		new Instruction("push_field_return"),
+
+		null, null, null,				// leave room for gap in ints
+
+		new Instruction("send_int_add", OperandType.SHORT, OperandType.LITERAL),
+		new Instruction("send_int_sub", OperandType.SHORT, OperandType.LITERAL),
+		new Instruction("send_int_lt", OperandType.SHORT, OperandType.LITERAL),
+		new Instruction("send_int_le", OperandType.SHORT, OperandType.LITERAL),
+		new Instruction("send_int_eq", OperandType.SHORT, OperandType.LITERAL),
+		new Instruction("send_array_at", OperandType.SHORT, OperandType.LITERAL),
+		new Instruction("send_array_at_put", OperandType.SHORT, OperandType.LITERAL),
+		new Instruction("send_block_value", OperandType.SHORT, OperandType.LITERAL),
+		new Instruction("push_temp", OperandType.SHORT, OperandType.SHORT),
+		new Instruction("store_temp", OperandType.SHORT, OperandType.SHORT),
+		new Instruction("jump_restore_locals", OperandType.ADDR),
 	};
 
+	/** The opcodes making up each superinstruction, indexed by opcode */
+	public static final short[][] components = new short[instructions.length][];
+	static {
+		components[POP_SELF_RETURN] = new short[] {POP, SELF, RETURN};
+		components[STORE_LOCAL_POP] = new short[] {STORE_LOCAL, POP};
+		components[STORE_FIELD_POP] = new short[] {STORE_FIELD, POP};
+		components[PUSH_LOCAL_SEND] = new short[] {PUSH_LOCAL, SEND};
+		components[SELF_SEND] = new short[] {SELF, SEND};
+		components[PUSH_INT_SEND] = new short[] {PUSH_INT, SEND};
+		components[PUSH_FIELD_RETURN] = new short[] {PUSH_FIELD, RETURN};
+	}
+
+	public static boolean isSuperinstruction(int opcode) {
+		return opcode<components.length && components[opcode]!=null;
+	}
+
+	public static boolean isQuickenedSend(int opcode) {
+		return opcode>=SEND_INT_ADD && opcode<=SEND_BLOCK_VALUE;
+	}
+
+	/** How many bytes does the instruction with this opcode occupy, including
+	 *  the opcode itself?
+	 */
+	public static int sizeOfInstruction(int opcode) {
+		Instruction I = instructions[opcode];
+		int size = 1;
+		for (int i=0; i<I.n; i++) {
+			size += I.type[i].sizeInBytes;
+		}
+		return size;
+	}
+
 	public static String disassemble(STCompiledBlock blk, int start) {
 		StringBuilder buf = new StringBuilder();
 		int i=start;
@@ -122,6 +231,28 @@ public class Bytecode {
 		return buf.toString();
 	}
 
+	/** Disassemble the instruction at ip as the VM will execute it. A
+	 *  superinstruction or quickened send in the decoded code shows as its
+	 *  name followed by the original instructions from the byte[] code.
+	 */
+	public static String disassembleDecodedInstruction(STCompiledBlock blk, int ip) {
+		int opcode = blk.code!=null ? blk.code[ip] : blk.bytecode[ip];
+		if ( !isSuperinstruction(opcode) && !isQuickenedSend(opcode) ) {
+			return disassembleInstruction(blk, ip);
+		}
+		StringBuilder buf = new StringBuilder();
+		buf.append(String.format("%04d:  %s [", ip, instructions[opcode].name));
+		int n = isQuickenedSend(opcode) ? 1 : components[opcode].length;
+		for (int i=0; i<n; i++) {
+			if ( i>0 ) buf.append("; ");
+			StringBuilder component = new StringBuilder();
+			ip = disassembleInstruction(component, blk, ip);
+			buf.append(component.toString().trim());
+		}
+		buf.append("]");
+		return buf.toString();
+	}
+
 	public static String disassembleInstruction(STCompiledBlock blk, int ip) {
 		StringBuilder buf = new StringBuilder();
 		disassembleInstruction(buf, blk, ip);
@@ -131,6 +262,7 @@ public class Bytecode {
 	public static int disassembleInstruction(StringBuilder buf, STCompiledBlock blk, int ip) {
 		byte[] code = blk.bytecode;
 		int opcode = code[ip];
+		int next = ip + sizeOfInstruction(opcode);
 		if ( ip>=code.length ) {
 			throw new IllegalArgumentException("ip out of range: "+ip);
 		}
@@ -174,6 +306,8 @@ public class Bytecode {
 					}
 					break;
 				case ADDR :
+					operands.add(String.valueOf(next + getInt(code, ip))); // show target address
+					break;
 				case INT :
 					operands.add(String.valueOf(getInt(code, ip)));
 					break;
@@ -0,0 +1,84 @@
+package smalltalk.vm;
+
+import smalltalk.vm.primitive.Primitive;
+import smalltalk.vm.primitive.STCompiledBlock;
+import smalltalk.vm.primitive.STMetaClassObject;
+
+/** The lookup cache attached to a single SEND or SEND_SUPER instruction.
+ *
+ *  A site starts out empty, becomes monomorphic after its first send, grows
+ *  to a small polymorphic table as new receiver classes show up and, once
+ *  it has seen more than {@link #MAX_ENTRIES} of them, gives up and stays
+ *  megamorphic so the VM does a full lookup every time.
+ *
+ *  Entries are keyed on the receiver's class plus whether the receiver is
+ *  the class object itself, since the same class answers both class-side
+ *  and instance-side messages. Each entry records the compiled method that
+ *  the lookup resolved to; its {@link STCompiledBlock#primitive} says
+ *  whether that is a primitive.
+ */
+public class InlineCache {
+	public enum State { EMPTY, MONOMORPHIC, POLYMORPHIC, MEGAMORPHIC }
+
+	public static final int MAX_ENTRIES = 4;
+
+	public State state = State.EMPTY;
+
+	protected final STMetaClassObject[] classes = new STMetaClassObject[MAX_ENTRIES];
+	protected final boolean[] classSide = new boolean[MAX_ENTRIES];
+	protected final STCompiledBlock[] methods = new STCompiledBlock[MAX_ENTRIES];
+	protected int n = 0;
+
+	public int hits;
+	public int misses;
+
+	/** The {@link MethodCache#epoch} under which the entries were looked up */
+	public int epoch;
+
+	/** Return the index of the entry for this receiver kind or -1 on a miss. */
+	public int find(STMetaClassObject cls, boolean isClassSide) {
+		for (int i=0; i<n; i++) {
+			if ( classes[i]==cls && classSide[i]==isClassSide ) {
+				hits++;
+				return i;
+			}
+		}
+		misses++;
+		return -1;
+	}
+
+	public Primitive getPrimitive(int entry) { return methods[entry].primitive; }
+
+	public STCompiledBlock getMethod(int entry) { return methods[entry]; }
+
+	/** Record the result of a full lookup */
+	public void add(STMetaClassObject cls, boolean isClassSide, STCompiledBlock method) {
+		if ( state==State.MEGAMORPHIC ) return;
+		if ( n==MAX_ENTRIES ) {
+			state = State.MEGAMORPHIC;
+			n = 0;
+			return;
+		}
+		classes[n] = cls;
+		classSide[n] = isClassSide;
+		methods[n] = method;
+		n++;
+		state = n==1 ? State.MONOMORPHIC : State.POLYMORPHIC;
+	}
+
+	/** Forget all entries because methods have been redefined since they
+	 *  were looked up.
+	 */
+	public void flush(int epoch) {
+		n = 0;
+		state = State.EMPTY;
+		this.epoch = epoch;
+	}
+
+	public int size() { return n; }
+
+	@Override
+	public String toString() {
+		return state+"("+n+" entries, "+hits+" hits, "+misses+" misses)";
+	}
+}
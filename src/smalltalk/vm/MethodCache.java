@@ -0,0 +1,61 @@
+package smalltalk.vm;
+
+import smalltalk.vm.primitive.STCompiledBlock;
+import smalltalk.vm.primitive.STMetaClassObject;
+
+import java.util.Arrays;
+
+/** The VM-wide method lookup cache, as in the BlueBook: a fixed-size,
+ *  direct-mapped table from (class, side, selector id) to the compiled
+ *  method found by walking the superclass chain. The side says whether
+ *  the lookup was for a class method or an instance method. A colliding entry simply
+ *  replaces the old one.
+ *
+ *  Any change to a method dictionary must call {@link #invalidate()}, which
+ *  also bumps {@link #epoch} so that inline caches filled under the old
+ *  method dictionaries know to flush themselves.
+ */
+public class MethodCache {
+	public static final int SIZE = 1024; // must be a power of 2
+
+	private final STMetaClassObject[] classes = new STMetaClassObject[SIZE];
+	private final boolean[] classSides = new boolean[SIZE];
+	private final int[] selectors = new int[SIZE];
+	private final STCompiledBlock[] methods = new STCompiledBlock[SIZE];
+
+	/** Incremented on every invalidation */
+	public int epoch;
+
+	public long hits;
+	public long misses;
+
+	/** Return the cached method for cls and selector or null if not cached. */
+	public STCompiledBlock get(STMetaClassObject cls, boolean classSide, int selector) {
+		int i = index(cls, classSide, selector);
+		if ( classes[i]==cls && selectors[i]==selector && classSides[i]==classSide ) {
+			hits++;
+			return methods[i];
+		}
+		misses++;
+		return null;
+	}
+
+	public void put(STMetaClassObject cls, boolean classSide, int selector, STCompiledBlock method) {
+		int i = index(cls, classSide, selector);
+		classes[i] = cls;
+		classSides[i] = classSide;
+		selectors[i] = selector;
+		methods[i] = method;
+	}
+
+	public void invalidate() {
+		Arrays.fill(classes, null);
+		Arrays.fill(methods, null);
+		epoch++;
+	}
+
+	protected static int index(STMetaClassObject cls, boolean classSide, int selector) {
+		int h = System.identityHashCode(cls) ^ (((selector << 1) | (classSide ? 1 : 0)) * 0x9E3779B9);
+		return (h ^ (h >>> 16)) & (SIZE-1);
+	}
+}
@@ -0,0 +1,45 @@
+package smalltalk.vm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A process-wide table of interned message selectors like "+" or "at:put:".
+ *  Each distinct selector gets a small, dense integer id the first time it
+ *  is seen so that the VM can index per-class tables by selector rather than
+ *  comparing strings on every send. Ids never change once handed out.
+ *
+ *  Interning happens when classes are loaded, not during execution, so
+ *  the lock is not on the hot path.
+ */
+public class SelectorTable {
+	private static final Map<String,Integer> ids = new HashMap<>();
+	private static final List<String> names = new ArrayList<>();
+
+	/** Return the unique id for selector, allocating one if necessary. */
+	public static synchronized int intern(String selector) {
+		Integer id = ids.get(selector);
+		if ( id==null ) {
+			id = names.size();
+			names.add(selector);
+			ids.put(selector, id);
+		}
+		return id;
+	}
+
+	/** Return the id for selector or -1 if it has never been interned. */
+	public static synchronized int lookup(String selector) {
+		Integer id = ids.get(selector);
+		return id!=null ? id : -1;
+	}
+
+	public static synchronized String name(int id) {
+		return names.get(id);
+	}
+
+	/** How many selectors have been interned so far? */
+	public static synchronized int size() {
+		return names.size();
+	}
+}
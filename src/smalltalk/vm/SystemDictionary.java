@@ -1,11 +1,14 @@
 package smalltalk.vm;
 
+import org.antlr.symtab.Symbol;
 import smalltalk.compiler.STClass;
 import smalltalk.compiler.STMethod;
 import smalltalk.compiler.STSymbolTable;
 import smalltalk.vm.primitive.STMetaClassObject;
 import smalltalk.vm.primitive.STObject;
+
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -23,8 +26,8 @@ public class SystemDictionary {
 	public SystemDictionary(VirtualMachine vm, STSymbolTable stSymbolTable) {
 		this.vm = vm;
 		this.stSymbolTable = stSymbolTable;
+		symtabToSystemDictionary(stSymbolTable);
 		initPredefinedObjects();
-		//symtabToSystemDictionary(stSymbolTable);			//Newly added
 	}
 
 	/** Convert the symbol table with classes, methods, and compiled code
@@ -36,14 +39,39 @@ public class SystemDictionary {
 	 *  {@link smalltalk.vm.primitive.STCompiledBlock}s.
 	 */
 	public void symtabToSystemDictionary(STSymbolTable symtab) {
+		Map<String,STMetaClassObject> linked = new HashMap<>();
+		for (Symbol s : symtab.GLOBALS.getSymbols()) {
+			if ( s instanceof STClass ) {
+				defineMetaObject(s.getName(), link((STClass)s, linked));
+			}
+		}
+	}
 
+	/** Return the one meta-object for classSymbol, creating it on first
+	 *  use after the meta-object for its superclass. All subclasses share
+	 *  their superclass' meta-object so class identity means something.
+	 */
+	protected STMetaClassObject link(STClass classSymbol, Map<String,STMetaClassObject> linked) {
+		STMetaClassObject meta = linked.get(classSymbol.getName());
+		if ( meta==null ) {
+			STClass superClassSymbol = (STClass)classSymbol.getSuperClassScope();
+			STMetaClassObject superClass = superClassSymbol!=null ? link(superClassSymbol, linked) : null;
+			meta = new STMetaClassObject(vm, classSymbol, superClass);
+			linked.put(classSymbol.getName(), meta);
+		}
+		return meta;
 	}
 
-	/** Define predefined object Transcript. */
+	/** Define predefined object Transcript. Without the image there is no
+	 *  TranscriptStream class so make a bare one just for Transcript.
+	 */
 	public void initPredefinedObjects() {
-		/*STClass stclass = new STClass("TranscriptStream", "", stSymbolTable);
-		STMetaClassObject stMetaClassObject = new STMetaClassObject(vm, stclass);
-		objects.put("TranscriptStream", stMetaClassObject);*/
+		STMetaClassObject transcriptStream = lookupClass("TranscriptStream");
+		if ( transcriptStream==null ) {
+			STClass stclass = new STClass("TranscriptStream", "", stSymbolTable);
+			transcriptStream = new STMetaClassObject(vm, stclass, null);
+		}
+		objects.put("Transcript", new STObject(transcriptStream));
 	}
 
 	public STObject lookup(String id) {
@@ -51,11 +79,6 @@ public class SystemDictionary {
 	}
 
 	public STMetaClassObject lookupClass(String id) {
-		if(id.equals("TranscriptStream")){
-			STClass stclass = new STClass("TranscriptStream", "", stSymbolTable);
-			STMetaClassObject stMetaClassObject = new STMetaClassObject(vm, stclass);
-			return stMetaClassObject;
-		}
 		STMetaClassObject stMetaClassObject = null;
 		if(objects.get(id) != null)
 			stMetaClassObject = objects.get(id).getSTClass();
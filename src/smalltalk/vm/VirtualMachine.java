@@ -1,13 +1,14 @@
 package smalltalk.vm;
 
-import org.antlr.symtab.ClassSymbol;
-import org.antlr.symtab.Symbol;
 import org.antlr.symtab.Utils;
 import smalltalk.compiler.*;
 import smalltalk.vm.exceptions.*;
 import smalltalk.vm.primitive.*;
 
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -35,30 +36,120 @@ public class VirtualMachine {
 	/** Trace instructions and show stack during exec? */
 	public boolean trace = false;
 
-	/**Extract the args which needs to be pushed to new active BlockContext **/
-	public STObject []extractObjs;
+	/** The value stack holding the frames of all active contexts; see
+	 *  {@link BlockContext}. Grows as needed.
+	 */
+	public STObject[] stack = new STObject[INITIAL_STACK_SIZE];
 
-	public VirtualMachine(STSymbolTable symtab) {
-		systemDict = new SystemDictionary(this, symtab);
-		for (Symbol s : symtab.GLOBALS.getSymbols()) {
-			if ( s instanceof ClassSymbol ) {
-				systemDict.define(s.getName(), new STMetaClassObject(this,(STClass)s));		//ClassSymbols are converted to STMetaClassObjects
+	public static final int INITIAL_STACK_SIZE = 1024;
+
+	/** Finished contexts that were never captured, ready for reuse; linked
+	 *  through invokingContext.
+	 */
+	private BlockContext freeContexts;
+
+	/** Maps (class, selector) to the method found up the superclass chain */
+	public final MethodCache methodCache = new MethodCache();
+
+	/** Quicken a SEND site once its monomorphic cache has had this many hits */
+	public static final int QUICKEN_AFTER = 2;
+
+	/** How many sends were answered by their inline cache, or run quickened,
+	 *  vs. a full lookup?
+	 */
+	public long sendCacheHits;
+	public long sendCacheMisses;
+
+	/** When set, exec() adds the bytes of Java heap that each instruction
+	 *  allocates to {@link #allocatedBytes} under its opcode. Slow; tests
+	 *  use it to keep paths like SEND and RETURN allocation-free. Ignored
+	 *  unless {@link #canCountAllocations()}.
+	 */
+	public boolean countAllocations = false;
+
+	/** Bytes allocated by instructions, indexed by (decoded) opcode */
+	public final long[] allocatedBytes = new long[Bytecode.instructions.length];
+
+	/** The thread's allocation count just before the current instruction */
+	private long allocatedBefore;
+
+	/** Reads the JVM's count of bytes allocated by the current thread.
+	 *  Only loaded once exec() counts allocations.
+	 */
+	private static class AllocationCounter {
+		static final com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		static final boolean supported = threads.isThreadAllocatedMemorySupported();
+		static {
+			if ( supported && !threads.isThreadAllocatedMemoryEnabled() ) {
+				threads.setThreadAllocatedMemoryEnabled(true);
 			}
 		}
-		STObject transcript = new STObject(systemDict.lookupClass("TranscriptStream"));
-		systemDict.define("Transcript", transcript);
+
+		static long allocatedBytes() {
+			return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+	}
+
+	/** Classes the VM and primitives refer to all the time, looked up once */
+	public final STMetaClassObject integerClass;
+	public final STMetaClassObject largePositiveIntegerClass;
+	public final STMetaClassObject largeNegativeIntegerClass;
+	public final STMetaClassObject floatClass;
+	public final STMetaClassObject stringClass;
+	public final STMetaClassObject arrayClass;
+	public final STMetaClassObject booleanClass;
+	public final STMetaClassObject characterClass;
+	public final STMetaClassObject blockDescriptorClass;
+	public final STMetaClassObject undefinedObjectClass;
+
+	/** The range of Integers that {@link #newInteger} shares */
+	public static final int MIN_SMALL_INTEGER = -1024;
+	public static final int MAX_SMALL_INTEGER = 65535;
+
+	private final STInteger[] smallIntegers = new STInteger[MAX_SMALL_INTEGER - MIN_SMALL_INTEGER + 1];
+
+	/** The one nil, true and false of this VM, so == on them is identity */
+	public final STNil nil;
+	public final STBoolean trueObject;
+	public final STBoolean falseObject;
+
+	public VirtualMachine(STSymbolTable symtab) {
+		systemDict = new SystemDictionary(this, symtab);		//ClassSymbols are converted to STMetaClassObjects
+		integerClass = lookupClass("Integer");
+		largePositiveIntegerClass = lookupClass("LargePositiveInteger");
+		largeNegativeIntegerClass = lookupClass("LargeNegativeInteger");
+		floatClass = lookupClass("Float");
+		stringClass = lookupClass("String");
+		arrayClass = lookupClass("Array");
+		booleanClass = lookupClass("Boolean");
+		characterClass = lookupClass("Character");
+		blockDescriptorClass = lookupClass("BlockDescriptor");
+		undefinedObjectClass = lookupClass("UndefinedObject");
+		nil = new STNil(this);
+		trueObject = new STBoolean(this, true);
+		falseObject = new STBoolean(this, false);
+		bindCode();
+	}
+
+	/** Make the compiled code of all classes work in this VM. Other VMs
+	 *  made from the same symbol table share that code, so exec() does this
+	 *  again before running; it costs little if nothing ran in between.
+	 *  See {@link STCompiledBlock#bindTo}.
+	 */
+	protected void bindCode() {
+		for (STObject o : systemDict.getObjects()) {
+			if ( o instanceof STMetaClassObject ) ((STMetaClassObject)o).bindCode();
+		}
 	}
 
 	/** look up MainClass>>main and execute it */
 	public STObject execMain() {
-		STObject mainObject;
-		if(systemDict.lookupClass("MainClass") != null)
-			mainObject = systemDict.lookupClass("MainClass");
-		else
-			return nil();
-		STCompiledBlock main = ((STMetaClassObject)mainObject).methods.get("main");
+		STMetaClassObject mainClass = systemDict.lookupClass("MainClass");
+		if ( mainClass==null ) return nil();
+		STCompiledBlock main = mainClass.methods.get("main");
 
-		return exec(mainObject,main);
+		return exec(new STObject(mainClass), main); // main is an instance method
 	}
 
 	/** Begin execution of the bytecodes in method relative to a receiver
@@ -69,452 +160,526 @@ public class VirtualMachine {
 	 *  or return self/receiver if there's nothing on the stack.
 	 */
 	public STObject exec(STObject self, STCompiledBlock method) {
+		bindCode();
+		method.bindTo(this);
 		ctx = null;
-		BlockContext initialContext = new BlockContext(this, method, self);
+		BlockContext initialContext = newContext(method, self);
 		pushContext(initialContext);
+		boolean counting = countAllocations && canCountAllocations();
+		boolean instrumented = trace || counting;
 		while ( true ) {
 			pushctx = null;
-			int depth;
-			int localIndex;
-			if ( trace ) traceInstr(); // show instr first then stack after to show results
-			int op = ctx.compiledBlock.bytecode[ctx.ip];
+			if ( instrumented ) beforeInstruction(counting);
+			int ip = ctx.ip;
+			int[] code = ctx.compiledBlock.code;
+			Object[] constants = ctx.compiledBlock.constants;
+			int op = code[ip];
 			switch ( op ) {
 				case Bytecode.NIL:
+					ctx.ip = ip + 1;
 					ctx.push(nil());
-					consumeByte(ctx.ip);
 					break;
 				case Bytecode.TRUE:
+					ctx.ip = ip + 1;
 					ctx.push(stBool(true));
-					consumeByte(ctx.ip);
 					break;
 				case Bytecode.FALSE:
+					ctx.ip = ip + 1;
 					ctx.push(stBool(false));
-					consumeByte(ctx.ip);
 					break;
 				case Bytecode.PUSH_INT:
-					ctx.prev_ip = ctx.ip;
-					consumeByte(ctx.ip);
-					int value = getInt(ctx.ip);
-					consumeInt(ctx.ip);
-					ctx.push(newInteger(value));
+					ctx.prev_ip = ip;
+					ctx.ip = ip + 5;
+					ctx.push(newInteger(code[ip+1]));
 					break;
 				case Bytecode.PUSH_FLOAT:
-					consumeByte(ctx.ip);
-					int valueF = getInt(ctx.ip);
-					Float f = Float.intBitsToFloat(valueF);
-					consumeFloat(ctx.ip);
-					ctx.push(newFloat(f));
+					ctx.ip = ip + 5;
+					ctx.push((STObject)constants[code[ip+1]]);
 					break;
 				case Bytecode.PUSH_CHAR:
-					consumeByte(ctx.ip);
-					int ch = getShort(ctx.ip);
-					consumeShort(ctx.ip);
-					ctx.push(newCharacter(ch));
+					ctx.ip = ip + 3;
+					ctx.push((STObject)constants[code[ip+1]]);
 					break;
 				case Bytecode.PUSH_ARRAY:
-					consumeByte(ctx.ip);
-					int nargs = getShort(ctx.ip);
-					consumeShort(ctx.ip);
+					ctx.ip = ip + 3;
+					int nargs = code[ip+1];
 					STArray stArray = new STArray(this, nargs);
 					ctx.sp = ctx.sp - nargs;
 					ctx.push(stArray);
 					break;
 				case Bytecode.PUSH_LITERAL:
-					consumeByte(ctx.ip);
-					int index = getShort(ctx.ip);
-					String literalValue = ctx.compiledBlock.literals[index];
-					consumeShort(ctx.ip);
-					ctx.push(newString(literalValue));
+					ctx.ip = ip + 3;
+					ctx.push((STObject)constants[code[ip+1]]);
 					break;
 				case Bytecode.PUSH_GLOBAL:
-					consumeByte(ctx.ip);
-					int global = getShort(ctx.ip);
-					String litVal = ctx.compiledBlock.literals[global];
-					consumeShort(ctx.ip);
-					STObject glbl = this.lookupClass(litVal);
-					if(litVal.equals("Transcript"))
-						ctx.push(new STObject((STMetaClassObject) glbl));
-					else
-						ctx.push(glbl);
+					ctx.ip = ip + 3;
+					ctx.push(systemDict.lookup((String)constants[code[ip+1]]));
 					break;
 				case Bytecode.PUSH_LOCAL:
-					consumeByte(ctx.ip);
-					depth = getShort(ctx.ip);
-					consumeShort(ctx.ip);
-					localIndex = getShort(ctx.ip);
-					consumeShort(ctx.ip);
-					BlockContext plocal = getBlockContext(depth);
-					ctx.push(plocal.locals[localIndex]);
+					ctx.ip = ip + 5;
+					ctx.push(ctx.getLocal(code[ip+2]));
+					break;
+				case Bytecode.PUSH_TEMP:
+					ctx.ip = ip + 5;
+					ctx.push(ctx.getTemps(code[ip+1])[code[ip+2]]);
 					break;
 				case Bytecode.PUSH_FIELD:
-					consumeByte(ctx.ip);
-					int fieldIndex = getShort(ctx.ip);
-					consumeShort(ctx.ip);
-					STObject rec = ctx.receiver;
-					ctx.push(rec.fields[fieldIndex]);
+					ctx.ip = ip + 3;
+					ctx.push(ctx.receiver.getField(code[ip+1]));
 					break;
 				case Bytecode.STORE_LOCAL:
-					consumeByte(ctx.ip);
-					depth = getShort(ctx.ip);
-					consumeShort(ctx.ip);
-					localIndex = getShort(ctx.ip);
-					consumeShort(ctx.ip);
-					BlockContext slocal = getBlockContext(depth);
-					slocal.locals[localIndex] = ctx.top();
+					ctx.ip = ip + 5;
+					ctx.setLocal(code[ip+2], ctx.top());
+					break;
+				case Bytecode.STORE_TEMP:
+					ctx.ip = ip + 5;
+					ctx.getTemps(code[ip+1])[code[ip+2]] = ctx.top();
 					break;
 				case Bytecode.STORE_FIELD:
-					consumeByte(ctx.ip);
-					int fldIndx = getShort(ctx.ip);
-					consumeShort(ctx.ip);
-					STObject storeRec = ctx.receiver;
-					storeRec.fields[fldIndx] = ctx.top();
+					ctx.ip = ip + 3;
+					ctx.receiver.setField(code[ip+1], ctx.top());
 					break;
 				case Bytecode.SEND:
-					ctx.prev_ip = ctx.ip;
-					consumeByte(ctx.ip);
-					int args = getShort(ctx.ip);
-					consumeShort(ctx.ip);
-					int lit = getShort(ctx.ip);
-					consumeShort(ctx.ip);
-					String literal = ctx.compiledBlock.literals[lit];
-					Primitive p = getPrimtive(literal, args);
-					if(p != null){										//If the message is Primitive
-						STObject stObj = p.perform(ctx, args);
-						if(pushctx != null)								//If any block descriptor object found
-							pushContext(pushctx);						//Pushing a new Block Context if pushctx is not null
-						else
-							ctx.push(stObj);
-						if(p.equals(Primitive.BlockDescriptor_VALUE_1_ARG) || p.equals(Primitive.BlockDescriptor_VALUE_2_ARGS))
-							ctx.setLocals(extractObjs, args);
-					}
-					else{												//If the message is not primitive
-						extractObjs = getSTObjectArgs(ctx, args);
-						STObject recieve = ctx.stack[ctx.sp - args];	//Extract the Receiver of the message
-						STCompiledBlock st = getSTCompiledBlock(recieve, literal);
-						errorHandling(st, ctx, recieve);
-						ctx.sp = ctx.sp - args - 1;						//Modified the invoking ctx stack pointer
-						BlockContext bctx = new BlockContext(this, st, recieve);			//Create a new BlockContext based on the receive instance type
-						pushContext(bctx);
-						ctx.setLocals(extractObjs, args);					//Set the locals of newly created BlockContext
-					}
+				case Bytecode.SEND_INT_ADD:
+				case Bytecode.SEND_INT_SUB:
+				case Bytecode.SEND_INT_LT:
+				case Bytecode.SEND_INT_LE:
+				case Bytecode.SEND_INT_EQ:
+				case Bytecode.SEND_ARRAY_AT:
+				case Bytecode.SEND_ARRAY_AT_PUT:
+				case Bytecode.SEND_BLOCK_VALUE:
+					dispatchSend(code, constants, ip);
 					break;
 				case Bytecode.SEND_SUPER:
-					consumeByte(ctx.ip);
-					int arg = getShort(ctx.ip);
-					consumeShort(ctx.ip);
-					int litIndex = getShort(ctx.ip);
-					consumeShort(ctx.ip);
-					String litValue = ctx.compiledBlock.literals[litIndex];
-					STObject recieve = ctx.stack[ctx.sp - arg];	//Extract the Receiver of the message which should be a meta class object
-					STCompiledBlock st = getSTCompiledBlock(ctx.compiledBlock.enclosingClass.superClass, litValue);
-					ctx.sp = ctx.sp - arg - 1;						//Modified the invoking ctx stack pointer
-					BlockContext bctx = new BlockContext(this, st, recieve);			//Create a new BlockContext based on the receive instance type
-					pushContext(bctx);
+					ctx.ip = ip + 5;
+					int arg = code[ip+1];
+					STObject superRecieve = ctx.stack[ctx.sp - arg];	//Extract the Receiver of the message which should be a meta class object
+					BlockContext caller = ctx;
+					send((InlineCache)constants[code[ip+3]], ctx.compiledBlock.enclosingClass.superClass,
+						 superRecieve, arg, code[ip+2], code[ip+4]);
+					if ( ctx!=caller ) elideTailCaller(caller);
 					break;
 				case Bytecode.SELF:
-					consumeByte(ctx.ip);
-					if(ctx.receiver instanceof STMetaClassObject && ((STMetaClassObject) ctx.receiver).getName().equals("MainClass"))
-						ctx.push(new STObject((STMetaClassObject) ctx.receiver));
-					else
-						ctx.push(ctx.receiver);
+					ctx.ip = ip + 1;
+					ctx.push(self());
 					break;
 				case Bytecode.BLOCK:
-					consumeByte(ctx.ip);
-					int blk = getShort(ctx.ip);
-					consumeShort(ctx.ip);
-					BlockContext getEncBlk = ctx;					//Get the Enclosing BlockContext which holds all the block numbers
-					while(getEncBlk.enclosingContext != null){
-						getEncBlk = getEncBlk.enclosingContext;
+					ctx.ip = ip + 3;
+					STCompiledBlock blk = (STCompiledBlock)constants[code[ip+1]];
+					if ( blk.closure==STCompiledBlock.CLEAN_BLOCK ) {
+						if ( blk.cleanDescriptor==null ) blk.cleanDescriptor = new BlockDescriptor(this, blk, nil);
+						ctx.push(blk.cleanDescriptor);
+						break;
 					}
-					BlockDescriptor blkDes = new BlockDescriptor(getEncBlk.compiledBlock.blocks[blk], ctx, getEncBlk);
-					ctx.push(blkDes);
+					if ( blk.closure==STCompiledBlock.SELF_CLOSURE ) {
+						ctx.push(new BlockDescriptor(this, blk, ctx.receiver));
+						break;
+					}
+					STObject[][] outer = null;
+					if ( blk.outerReach>0 ) { // share the temp vectors it reaches; no frames
+						outer = new STObject[blk.outerReach][];
+						outer[0] = ctx.temps;
+						if ( blk.outerReach>1 ) System.arraycopy(ctx.outerTemps, 0, outer, 1, blk.outerReach - 1);
+					}
+					BlockContext home = null;
+					if ( blk.usesReturn ) {
+						home = ctx.enclosingMethodContext!=null ? ctx.enclosingMethodContext : ctx;
+						home.isHome = true;
+						home.capture();
+					}
+					ctx.push(new BlockDescriptor(this, blk, ctx.receiver, outer, home));
 					break;
 				case Bytecode.POP:
-					consumeByte(ctx.ip);
+					ctx.ip = ip + 1;
 					ctx.pop();
 					break;
+				case Bytecode.JUMP:
+					ctx.ip = code[ip+1];
+					break;
+				case Bytecode.JUMP_IF_TRUE:
+				case Bytecode.JUMP_IF_FALSE:
+					STObject cond = ctx.pop();
+					if ( cond instanceof STBoolean ) {
+						boolean jump = ((STBoolean)cond).b == (op==Bytecode.JUMP_IF_TRUE);
+						ctx.ip = jump ? code[ip+1] : ip + 11;
+					}
+					else {
+						nonBooleanCondition(cond, ip, code[ip+2], code[ip+3]);
+					}
+					break;
+				case Bytecode.JUMP_RESTORE_LOCALS:
+					ctx.restoreLocals();
+					ctx.ip = code[ip+1];
+					break;
 				case Bytecode.BLOCK_RETURN:
 					STObject blkObj = ctx.pop();
 					popContext();
 					ctx.push(blkObj);
 					break;
 				case Bytecode.RETURN:
-					STObject ret = ctx.pop();
-					boolean pop = false;
-					if(ctx.enclosingMethodContext != null){
-						if(ctx.invokingContext.receiver != ctx.enclosingContext.receiver){
-							String triggerBlock = getTriggerBlockName(ctx);
-							ctx.prev_ip = ctx.ip;
-							error("BlockCannotReturn", triggerBlock + " can't trigger return again from method " + ctx.enclosingMethodContext.compiledBlock.qualifiedName);
-						}
-						ctx = ctx.enclosingMethodContext;
-					}
-					if(ctx.invokingContext != null){
-						pop = true;
-						popContext();
-					}
-					if(pop)
-						ctx.push(ret);
-					else
-						ctx.receiver = ret;
+					methodReturn();
 					break;
 				case Bytecode.DBG:
-					ctx.prev_ip = ctx.ip;
-					consumeByte(ctx.ip);
-					int fileName = getShort(ctx.ip);
-					ctx.currentFile = ctx.compiledBlock.literals[fileName];
-					consumeShort(ctx.ip);
-					ctx.currentLine = getShort(ctx.ip);
-					consumeShort(ctx.ip);
-					ctx.currentCharPos = getShort(ctx.ip);
-					consumeShort(ctx.ip);
+					ctx.prev_ip = ip;
+					ctx.ip = ip + 7;
+					ctx.currentFile = (String)constants[code[ip+1]];
+					ctx.currentLine = code[ip+2];
+					ctx.currentCharPos = code[ip+3];
+					break;
+				case Bytecode.POP_SELF_RETURN:
+					ctx.pop();
+					ctx.push(self());
+					ctx.ip = ip + 2;
+					methodReturn();
+					break;
+				case Bytecode.STORE_LOCAL_POP:
+					ctx.ip = ip + 6;
+					ctx.setLocal(code[ip+2], ctx.pop());
+					break;
+				case Bytecode.STORE_FIELD_POP:
+					ctx.ip = ip + 4;
+					ctx.receiver.setField(code[ip+1], ctx.pop());
+					break;
+				case Bytecode.PUSH_FIELD_RETURN:
+					ctx.push(ctx.receiver.getField(code[ip+1]));
+					ctx.ip = ip + 3;
+					methodReturn();
+					break;
+				case Bytecode.PUSH_LOCAL_SEND:
+					ctx.push(ctx.getLocal(code[ip+2]));
+					dispatchSend(code, constants, ip + 5);
+					break;
+				case Bytecode.SELF_SEND:
+					ctx.push(self());
+					dispatchSend(code, constants, ip + 1);
+					break;
+				case Bytecode.PUSH_INT_SEND:
+					ctx.push(newInteger(code[ip+1]));
+					dispatchSend(code, constants, ip + 5);
 					break;
 			}
-			if ( trace ) traceStack(); // show stack *after* execution
-			op = ctx.compiledBlock.bytecode[ctx.ip];
-			if((ctx.sp == -1) && (op == Bytecode.RETURN))
+			if ( instrumented ) afterInstruction(counting, op);
+			if((ctx.sp == ctx.bp - 1) && (ctx.compiledBlock.code[ctx.ip] == Bytecode.RETURN))
 				break;
 		}
-		return ctx!=null ? ctx.receiver : null;
+		if ( ctx==null ) return null;
+		STObject result = ctx.receiver;
+		freeContext(ctx); // so the next exec() reuses it
+		return result;
 	}
 
-	private String getTriggerBlockName(BlockContext ctx) {
-		String stClass = ctx.receiver.getSTClass().getName();
-		String blk = ctx.toString().substring(ctx.toString().indexOf(">>"), ctx.toString().length() - 4);
-		return (stClass + blk);
+	/** Can this JVM tell how much each instruction allocates? */
+	public static boolean canCountAllocations() {
+		try {
+			return AllocationCounter.supported;
+		}
+		catch (LinkageError e) { // no com.sun.management
+			return false;
+		}
 	}
 
-	private void errorHandling(STCompiledBlock st, BlockContext ctx, STObject recieve) {
-		if(st.isClassMethod){
-			if(recieve instanceof STInteger){
-				String name = getCompiledBlockName(st);
-				error("ClassMessageSentToInstance", name + " is a class method sent to instance of Integer");
-			}
-			if(recieve instanceof STFloat){
-				String name = getCompiledBlockName(st);
-				error("ClassMessageSentToInstance", name + " is a class method sent to instance of Float");
+	private void beforeInstruction(boolean counting) {
+		if ( trace ) traceInstr(); // show instr first then stack after to show results
+		if ( counting ) allocatedBefore = AllocationCounter.allocatedBytes();
+	}
+
+	private void afterInstruction(boolean counting, int op) {
+		if ( counting ) allocatedBytes[op] += AllocationCounter.allocatedBytes() - allocatedBefore;
+		if ( trace ) traceStack(); // show stack *after* execution
+	}
+
+	/** Value of self in the active context */
+	private STObject self() {
+		return ctx.receiver;
+	}
+
+	/** Execute the SEND, or the quickened form of it, at address ip. This is
+	 *  also how superinstructions ending in a send perform it.
+	 */
+	private void dispatchSend(int[] code, Object[] constants, int ip) {
+		ctx.prev_ip = ip;
+		ctx.ip = ip + 5;
+		int args = code[ip+1];
+		InlineCache cache = (InlineCache)constants[code[ip+3]];
+		BlockContext caller = ctx;
+		if ( code[ip]!=Bytecode.SEND ) {
+			if ( cache.epoch!=methodCache.epoch ) {
+				code[ip] = Bytecode.SEND; // a method was redefined; the primitive may be gone
 			}
-			if(recieve instanceof STCharacter){
-				String name = getCompiledBlockName(st);
-				error("ClassMessageSentToInstance", name + " is a class method sent to instance of Float");
+			else if ( quickSend(code, ip, args) ) {
+				sendCacheHits++;
+				if ( ctx!=caller ) elideTailCaller(caller);
+				return;
 			}
-			if(recieve instanceof STObject){
-				String name = getCompiledBlockName(st);
-				if(!name.equals("new") && !name.equals("new:") && !(recieve.toString().startsWith("class")))
-					error("ClassMessageSentToInstance", name + " is a class method sent to instance of " + recieve.getSTClass().name);
+		}
+		STObject recieve = ctx.stack[ctx.sp - args];	//Extract the Receiver of the message
+		send(cache, recieve.getSTClass(), recieve, args, code[ip+2], code[ip+4]);
+		if ( code[ip]==Bytecode.SEND &&
+			 cache.state==InlineCache.State.MONOMORPHIC && cache.hits>=QUICKEN_AFTER )
+		{
+			quicken(code, ip, cache);
+		}
+		if ( ctx!=caller ) elideTailCaller(caller);
+	}
+
+	/** A send from caller just made a new context active. If all caller
+	 *  does after that send is return the result, let the new context
+	 *  return straight to caller's invoker and drop caller from the chain,
+	 *  so tail-recursive methods and blocks run in constant depth.
+	 *
+	 *  A method context returns with RETURN and a block context with
+	 *  BLOCK_RETURN; a RETURN in a block returns from its home method, so
+	 *  that isn't a tail send. Neither a home context nor the outermost
+	 *  context is ever dropped. The new context's frame moves down over
+	 *  caller's. DBG instructions and jumps, like the one that ends the
+	 *  true branch of an open-coded ifTrue:, are skipped on the way to the
+	 *  return.
+	 */
+	private void elideTailCaller(BlockContext caller) {
+		BlockContext callee = ctx;
+		if ( callee.invokingContext!=caller || caller.invokingContext==null || caller.isHome ) return;
+		int[] code = caller.compiledBlock.code;
+		int next = caller.ip;
+		while ( code[next]==Bytecode.DBG || code[next]==Bytecode.JUMP ) {
+			next = code[next]==Bytecode.JUMP ? code[next+1] : next + Bytecode.sizeOfInstruction(Bytecode.DBG);
+		}
+		// only method code has a RETURN that returns from its own context;
+		// blocks without a home have no RETURN at all
+		boolean isMethod = caller.enclosingMethodContext==null;
+		if ( code[next]==Bytecode.BLOCK_RETURN || (isMethod && code[next]==Bytecode.RETURN) ) {
+			callee.invokingContext = caller.invokingContext;
+			callee.elidedFrames = caller.elidedFrames + 1;
+			callee.moveFrame(caller.base);
+			freeContext(caller);
+		}
+	}
+
+	/** Rewrite the SEND at ip into a type-specialized opcode if the one
+	 *  target its cache has seen is a primitive we can run inline.
+	 */
+	private void quicken(int[] code, int ip, InlineCache cache) {
+		Primitive p = cache.getPrimitive(0);
+		if ( p==null ) return;
+		switch ( p ) {
+			case Integer_ADD : code[ip] = Bytecode.SEND_INT_ADD; break;
+			case Integer_SUB : code[ip] = Bytecode.SEND_INT_SUB; break;
+			case Integer_LT : code[ip] = Bytecode.SEND_INT_LT; break;
+			case Integer_LE : code[ip] = Bytecode.SEND_INT_LE; break;
+			case Integer_EQ : code[ip] = Bytecode.SEND_INT_EQ; break;
+			case Array_AT : code[ip] = Bytecode.SEND_ARRAY_AT; break;
+			case Array_AT_PUT : code[ip] = Bytecode.SEND_ARRAY_AT_PUT; break;
+			case BlockDescriptor_VALUE :
+			case BlockDescriptor_VALUE_1_ARG :
+			case BlockDescriptor_VALUE_2_ARGS :
+				code[ip] = Bytecode.SEND_BLOCK_VALUE;
+				break;
+		}
+	}
+
+	/** Run the quickened send at ip inline. If the receiver or argument
+	 *  types no longer match, turn the instruction back into a SEND. Return
+	 *  false if the caller must do a normal send instead.
+	 */
+	private boolean quickSend(int[] code, int ip, int args) {
+		STObject[] stack = ctx.stack;
+		int sp = ctx.sp;
+		STObject r = stack[sp - args];
+		STObject a = args>0 ? stack[sp - args + 1] : null;
+		switch ( code[ip] ) {
+			case Bytecode.SEND_INT_ADD:
+			case Bytecode.SEND_INT_SUB:
+			case Bytecode.SEND_INT_LT:
+			case Bytecode.SEND_INT_LE:
+			case Bytecode.SEND_INT_EQ:
+				if ( !(r instanceof STInteger) || !(a instanceof STInteger) ) break;
+				int x = ((STInteger)r).v;
+				int y = ((STInteger)a).v;
+				STObject result;
+				switch ( code[ip] ) {
+					case Bytecode.SEND_INT_ADD: result = newInteger((long)x + y); break;
+					case Bytecode.SEND_INT_SUB: result = newInteger((long)x - y); break;
+					case Bytecode.SEND_INT_LT: result = stBool(x < y); break;
+					case Bytecode.SEND_INT_LE: result = stBool(x <= y); break;
+					default: result = stBool(x == y); break;
+				}
+				stack[sp - 1] = result;
+				ctx.sp = sp - 1;
+				return true;
+			case Bytecode.SEND_ARRAY_AT:
+			case Bytecode.SEND_ARRAY_AT_PUT:
+				if ( !(r instanceof STArray) || !(a instanceof STInteger) ) break;
+				STObject[] elements = ((STArray)r).elements;
+				int i = ((STInteger)a).v;
+				if ( i<1 || i>elements.length ) return false; // let the primitive complain
+				if ( args==1 ) {
+					stack[sp - 1] = elements[i - 1];
+				}
+				else {
+					elements[i - 1] = stack[sp];
+					stack[sp - 2] = r;
+				}
+				ctx.sp = sp - args;
+				return true;
+			case Bytecode.SEND_BLOCK_VALUE:
+				if ( !(r instanceof BlockDescriptor) || ((BlockDescriptor)r).block.nargs!=args ) break;
+				ctx.sp = sp - args - 1;
+				pushContext(newContext((BlockDescriptor)r)); // arguments stay in place
+				return true;
+		}
+		code[ip] = Bytecode.SEND;
+		return false;
+	}
+
+	/** The condition of the conditional jump at ip isn't a Boolean, so
+	 *  perform the control-flow message it stands in for as an ordinary
+	 *  send, with cond as receiver, as if it had never been open-coded. The
+	 *  compiler put that send at the fallback address, after BLOCK
+	 *  instructions for its block arguments. Those blocks reach this
+	 *  context's variables through its temp vector, so copy them there;
+	 *  the JUMP_RESTORE_LOCALS after the send copies them back. A loop has
+	 *  no fallback: report that cond doesn't understand the message named
+	 *  by literal lit.
+	 */
+	private void nonBooleanCondition(STObject cond, int ip, int lit, int fallback) {
+		if ( fallback<0 ) {
+			STMetaClassObject cls = cond.getSTClass();
+			ctx.prev_ip = ip;
+			error("MessageNotUnderstood", ctx.compiledBlock.literals[lit] + " is not understood by " +
+				  (cond instanceof STMetaClassObject ? "class object " : "instance of ") + cls.getName());
+		}
+		ctx.spillLocals();
+		ctx.push(cond);
+		ctx.ip = fallback;
+	}
+
+	/** Return the value on top of the stack from the active method, or from
+	 *  the method enclosing the active block. ip must point at the RETURN.
+	 *
+	 *  A block can only return from its home method while that method is
+	 *  still running. A home context is marked {@link BlockContext#RETURNED}
+	 *  when it finishes, so that's a single test; otherwise it is on the
+	 *  invoking chain and we pop every context down to it and then it.
+	 */
+	private void methodReturn() {
+		STObject ret = ctx.pop();
+		BlockContext home = ctx.enclosingMethodContext;
+		if ( home!=null ) {
+			if ( home.invokingContext==BlockContext.RETURNED ) {
+				String triggerBlock = getTriggerBlockName(ctx);
+				ctx.prev_ip = ctx.ip;
+				error("BlockCannotReturn", triggerBlock + " can't trigger return again from method " + home.compiledBlock.qualifiedName);
 			}
+			while ( ctx!=home ) popContext();
+		}
+		if ( ctx.invokingContext==null ) { // main
+			ctx.receiver = ret;
+			return;
+		}
+		popContext();
+		ctx.push(ret);
+	}
+
+	/** Send the message with interned selector id selector, named by
+	 *  literal lit, to recieve, looking the selector up starting in class cls. The site's inline cache is
+	 *  consulted first; on a miss we do a full lookup and remember it.
+	 */
+	private void send(InlineCache cache, STMetaClassObject cls, STObject recieve, int args, int selector, int lit) {
+		boolean classSide = recieve instanceof STMetaClassObject;
+		STCompiledBlock st;
+		if ( cache.epoch!=methodCache.epoch ) cache.flush(methodCache.epoch);
+		int entry = cache.find(cls, classSide);
+		if ( entry>=0 ) {
+			sendCacheHits++;
+			st = cache.getMethod(entry);
+		}
+		else {
+			sendCacheMisses++;
+			st = lookupMethod(cls, classSide, selector, ctx.compiledBlock.literals[lit]);
+			if ( st==null ) messageNotUnderstood(cls, classSide, ctx.compiledBlock.literals[lit]);
+			cache.add(cls, classSide, st);
+		}
+		if ( st.quick!=STCompiledBlock.NOT_QUICK ) {
+			quickMethod(st, args);
+			return;
 		}
-		else{
-			if(recieve instanceof STObject){
-				String name = getCompiledBlockName(st);
-				if(recieve.toString().startsWith("class"))
-					error("MessageNotUnderstood", name + " is an instance method sent to class object " + recieve.getSTClass().name);
+		Primitive p = st.primitive;
+		if(p != null){										//If the message is Primitive
+			int sp = ctx.sp;
+			STObject stObj = p.perform(ctx, args);
+			if ( stObj!=Primitive.FAILED ) {
+				if(pushctx != null)							//If any block descriptor object found
+					pushContext(pushctx);					//Pushing a new Block Context if pushctx is not null
+				else
+					ctx.push(stObj);
+				return;
 			}
+			ctx.sp = sp; // receiver and arguments are still in place for the fallback code
+			if ( st.bytecode.length==0 ) primitiveFailed(st, cls, recieve);
 		}
+		ctx.sp = ctx.sp - args - 1;							//Modified the invoking ctx stack pointer
+		pushContext(newContext(st, recieve));				//The arguments left on the stack become its first locals
 	}
 
-	private String getCompiledBlockName(STCompiledBlock st) {
-		if(st.name.indexOf("static") >=0 ){
-			return (st.name.substring(st.name.indexOf("static") + 7, st.name.length()));
+	/** Run quick method m in place of the receiver and args on top of the
+	 *  stack, without a context.
+	 */
+	private void quickMethod(STCompiledBlock m, int args) {
+		STObject[] stack = ctx.stack;
+		int r = ctx.sp - args;
+		STObject receiver = stack[r];
+		switch ( m.quick ) {
+			case STCompiledBlock.QUICK_FIELD : stack[r] = receiver.getField(m.quickOperand); break;
+			case STCompiledBlock.QUICK_SET_FIELD : receiver.setField(m.quickOperand, stack[r + 1]); break;
+			case STCompiledBlock.QUICK_NIL : stack[r] = nil; break;
+			case STCompiledBlock.QUICK_TRUE : stack[r] = trueObject; break;
+			case STCompiledBlock.QUICK_FALSE : stack[r] = falseObject; break;
+			case STCompiledBlock.QUICK_INT : stack[r] = newInteger(m.quickOperand); break;
 		}
-		else
-			return st.name;
+		ctx.sp = r; // QUICK_SELF and QUICK_SET_FIELD leave the receiver
 	}
 
-	private STCompiledBlock getSTCompiledBlock(STObject recieve, String literal) {
-		if(!recieve.getSTClass().getName().equals("MainClass")){
-			if(this.lookupClass(recieve.getSTClass().getName()).methods.get(literal) != null)
-				return this.lookupClass(recieve.getSTClass().getName()).methods.get(literal);
-			else{
-				if(recieve.metaclass != null){
-					STMetaClassObject s = this.lookupClass(recieve.metaclass.superClass.getName());
-					if(s.methods.get(literal) != null){
-						return s.methods.get(literal);
-					}
-				}
+	/** The primitive of method m couldn't handle its operands and m has no
+	 *  Smalltalk code to fall back on.
+	 */
+	private void primitiveFailed(STCompiledBlock m, STMetaClassObject cls, STObject recieve) {
+		error("PrimitiveFailed", m.primitive + " failed for " + m.name + " sent to " +
+			  (recieve instanceof STMetaClassObject ? "class object " : "instance of ") + cls.getName());
+	}
+
+	private String getTriggerBlockName(BlockContext ctx) {
+		String stClass = ctx.receiver.getSTClass().getName();
+		String blk = ctx.toString().substring(ctx.toString().indexOf(">>"), ctx.toString().length() - 4);
+		return (stClass + blk);
+	}
+
+	/** Nothing on the receiver's side of class cls understands selectorName.
+	 *  If the other side does, say that the message went to the wrong kind
+	 *  of receiver.
+	 */
+	private void messageNotUnderstood(STMetaClassObject cls, boolean classSide, String selectorName) {
+		if ( cls.lookupMethod(selectorName, !classSide)!=null ) {
+			if ( classSide ) {
+				error("MessageNotUnderstood", selectorName + " is an instance method sent to class object " + cls.getName());
 			}
+			error("ClassMessageSentToInstance", selectorName + " is a class method sent to instance of " + cls.getName());
 		}
-		if(this.lookupClass("Object").methods.get(literal) != null){
-			return this.lookupClass("Object").methods.get(literal);
-		}
-		if(this.lookupClass("Collection").methods.get(literal) != null){
-			return this.lookupClass("Collection").methods.get(literal);
-		}
-		return null;
-	}
-
-	public STObject[] getSTObjectArgs(BlockContext ctx, int args) {
-		STObject []elements = new STObject[args];
-		for(int i=1; i<=args; i++){
-			elements[i-1] = ctx.stack[ctx.sp - args + i];
-		}
-		return elements;
-	}
-
-	private BlockContext getBlockContext(int depth) {
-		BlockContext ctx = this.ctx;
-		for(int i = 0; i < depth; i++){
-			ctx = ctx.enclosingContext;
-		}
-
-		return ctx;
-	}
-
-	public Primitive getPrimtive(String literal, int args){
-		if(ctx.stack[ctx.sp - args] instanceof STInteger)
-			return getIntegerPrimitive(literal);
-		else if(ctx.stack[ctx.sp - args] instanceof STFloat)
-			return getFloatPrimtive(literal);
-		else if(ctx.stack[ctx.sp - args] instanceof STBoolean)
-			return getBooleanPrimtive(literal);
-		else if(ctx.stack[ctx.sp - args] instanceof STString)
-			return getStringPrimtive(literal);
-		else if(ctx.stack[ctx.sp - args] instanceof STCharacter)
-			return getCharacterPrimtive(literal);
-		else if(ctx.stack[ctx.sp - args] instanceof STArray)
-			return getArrayPrimitive(literal, args);
-		else if(ctx.stack[ctx.sp - args] instanceof BlockDescriptor)
-			return getBlockObjectPrimtive(literal, args);
-		else if(ctx.stack[ctx.sp - args] instanceof STObject)
-			return getObjectPrimtive(literal, args);
-		else
-			return null;
-	}
-
-	private Primitive getFloatPrimtive(String literal) {
-		if(literal.equals("+"))
-			return Primitive.Float_ADD;
-		if(literal.equals("-"))
-			return Primitive.Float_SUB;
-		if(literal.equals("*"))
-			return Primitive.Float_MULT;
-		if(literal.equals("/"))
-			return Primitive.Float_DIV;
-		if(literal.equals("="))
-			return Primitive.Float_EQ;
-		if(literal.equals("<"))
-			return Primitive.Float_LT;
-		if(literal.equals("<="))
-			return Primitive.Float_LE;
-		if(literal.equals(">"))
-			return Primitive.Float_GT;
-		if(literal.equals(">="))
-			return Primitive.Float_GE;
-		if(literal.equals("asString"))
-			return Primitive.Object_ASSTRING;
-
-		return null;
-	}
-
-	private Primitive getCharacterPrimtive(String literal) {
-		if(literal.equals("asInteger"))
-			return Primitive.Character_ASINTEGER;
-		if(literal.equals("asString"))
-			return Primitive.Object_ASSTRING;
-		if(literal.equals("+"))
-			return Primitive.Integer_ADD;
-
-		return null;
-	}
-
-	private Primitive getBlockObjectPrimtive(String literal, int args) {
-		if(literal.equals("value"))
-			return Primitive.BlockDescriptor_VALUE;
-		if(literal.equals("value:") && args == 1)
-			return Primitive.BlockDescriptor_VALUE_1_ARG;
-		if(literal.equals("value:") && args == 2)
-			return Primitive.BlockDescriptor_VALUE_2_ARGS;
-
-		return null;
-	}
-
-	private Primitive getObjectPrimtive(String literal, int args) {
-		if(literal.equals("basicNew"))
-			return Primitive.Object_Class_BASICNEW;
-		if(literal.equals("show:"))
-			return Primitive.TranscriptStream_SHOW;
-		if(literal.equals("=="))
-			return Primitive.Object_SAME;
-		if(literal.equals("className"))
-			return Primitive.Object_CLASSNAME;
-		if(ctx.stack[ctx.sp - args] instanceof STMetaClassObject){
-			String name = ((STMetaClassObject) ctx.stack[ctx.sp - args]).getName();
-			if(name.equals("Array"))
-				return getArrayPrimitive(literal, args);
-		}
-
-		return null;
-	}
-
-	private Primitive getArrayPrimitive(String literal, int args) {
-		if(literal.equals("new:"))
-			return Primitive.Array_Class_NEW;
-		if(literal.equals("size"))
-			return Primitive.Array_SIZE;
-		if(literal.equals("at:put:"))
-			return Primitive.Array_AT_PUT;
-		if(literal.equals("at:"))
-			return Primitive.Array_AT;
-		if(literal.equals("className"))
-			return Primitive.Object_CLASSNAME;
-
-		return null;
-	}
-
-	public Primitive getStringPrimtive(String literal){
-		if(literal.equals("asString"))
-			return Primitive.Object_ASSTRING;
-		if(literal.equals("new:"))
-			return Primitive.String_Class_NEW;
-		if(literal.equals(","))
-			return Primitive.String_CAT;
-		if(literal.equals("==") || literal.equals("="))
-			return Primitive.String_EQ;
-		if(literal.equals("asArray"))
-			return Primitive.String_ASARRAY;
-
-		return null;
-	}
-
-	public Primitive getBooleanPrimtive(String literal){
-		if(literal.equals("ifTrue:"))
-			return Primitive.Boolean_IFTRUE;
-		if(literal.equals("ifTrue:ifFalse:"))
-			return Primitive.Boolean_IFTRUE_IFFALSE;
-		if(literal.equals("not"))
-			return Primitive.Boolean_NOT;
-		if(literal.equals("asString"))
-			return Primitive.Object_ASSTRING;
-
-		return null;
-	}
-
-	public Primitive getIntegerPrimitive(String literal){
-		if(literal.equals("+"))
-			return Primitive.Integer_ADD;
-		if(literal.equals("-"))
-			return Primitive.Integer_SUB;
-		if(literal.equals("*"))
-			return Primitive.Integer_MULT;
-		if(literal.equals("/"))
-			return Primitive.Integer_DIV;
-		if(literal.equals("="))
-			return Primitive.Integer_EQ;
-		if(literal.equals("<"))
-			return Primitive.Integer_LT;
-		if(literal.equals("<="))
-			return Primitive.Integer_LE;
-		if(literal.equals(">"))
-			return Primitive.Integer_GT;
-		if(literal.equals(">="))
-			return Primitive.Integer_GE;
-		if(literal.equals("mod:"))
-			return Primitive.Integer_MOD;
-		if(literal.equals("asString"))
-			return Primitive.Object_ASSTRING;
-
-		return null;
+		error("MessageNotUnderstood", selectorName + " is not understood by " +
+			  (classSide ? "class object " : "instance of ") + cls.getName());
 	}
+
+	/** Find the method for selector starting at class cls and walking up
+	 *  the superclass chain, going through the global method cache. Look
+	 *  among the class methods if classSide, else the instance methods.
+	 */
+	public STCompiledBlock lookupMethod(STMetaClassObject cls, boolean classSide, int selector, String selectorName) {
+		STCompiledBlock st = methodCache.get(cls, classSide, selector);
+		if ( st==null ) {
+			st = cls.lookupMethod(selectorName, classSide);
+			if ( st!=null ) methodCache.put(cls, classSide, selector, st);
+		}
+		return st;
+	}
+
 	public void error(String type, String msg) throws VMException {
 		error(type, null, msg);
 	}
@@ -542,6 +707,8 @@ public class VirtualMachine {
 				throw new UnknownClass(msg,stack);
 			case "TypeError":
 				throw new TypeError(msg,stack);
+			case "PrimitiveFailed":
+				throw new PrimitiveFailed(msg,stack);
 			case "UnknownField":
 				throw new UnknownField(msg,stack);
 			default :
@@ -553,13 +720,67 @@ public class VirtualMachine {
 		error("unknown", msg);
 	}
 
+	/** Make ctx the active context. Its frame starts just past the receiver
+	 *  slot above the active context's stack top, where the arguments of
+	 *  the send that invoked it already sit.
+	 */
 	public void pushContext(BlockContext ctx) {
+		int base = this.ctx!=null ? this.ctx.sp + 2 : 0;
+		int top = base + ctx.compiledBlock.nargs + ctx.compiledBlock.nlocals + ctx.compiledBlock.maxStack;
+		if ( top>stack.length ) growStack(top);
+		ctx.setFrame(stack, base);
 		ctx.invokingContext = this.ctx;
 		this.ctx = ctx;
 	}
 
 	public void popContext() {
+		BlockContext done = ctx;
 		ctx = ctx.invokingContext;
+		freeContext(done);
+	}
+
+	/** Return a context for compiledBlock, reusing a finished one if we can */
+	public BlockContext newContext(STCompiledBlock compiledBlock, STObject receiver) {
+		BlockContext c = freeContexts;
+		if ( c==null ) return new BlockContext(this, compiledBlock, receiver);
+		freeContexts = c.invokingContext;
+		c.init(compiledBlock, receiver);
+		return c;
+	}
+
+	/** Return a context to evaluate the block described by descriptor, as
+	 *  a result of a "value" message. Its receiver is not the descriptor
+	 *  but the receiver of the method that defined the block, so that self
+	 *  in the block means the right object.
+	 */
+	public BlockContext newContext(BlockDescriptor descriptor) {
+		BlockContext c = newContext(descriptor.block, descriptor.receiver);
+		c.outerTemps = descriptor.outerTemps;
+		c.enclosingMethodContext = descriptor.enclosingMethodContext;
+		return c;
+	}
+
+	/** c has finished; reuse it unless a block can still return from it,
+	 *  in which case mark it so the block can tell.
+	 */
+	private void freeContext(BlockContext c) {
+		if ( c.captured ) {
+			c.invokingContext = BlockContext.RETURNED;
+			return;
+		}
+		c.invokingContext = freeContexts;
+		freeContexts = c;
+	}
+
+	/** Make the value stack hold at least minSize slots. Only the contexts on
+	 *  the invoking chain have frames in it.
+	 */
+	private void growStack(int minSize) {
+		STObject[] old = stack;
+		stack = Arrays.copyOf(old, Math.max(minSize, old.length * 2));
+		for (BlockContext c = ctx; c!=null; c = c.invokingContext) {
+			c.stack = stack;
+		}
 	}
 
 	public static STObject TranscriptStream_SHOW(BlockContext ctx, int nArgs, Primitive primitive) {
@@ -584,8 +805,32 @@ public class VirtualMachine {
 		return systemDict.lookupClass(id);
 	}
 
+	/** Return the Integer for v. Values from {@link #MIN_SMALL_INTEGER} to
+	 *  {@link #MAX_SMALL_INTEGER} are shared, created on first use, so
+	 *  loops and arithmetic on them don't allocate.
+	 */
 	public STInteger newInteger(int v) {
-		return new STInteger(this, v);
+		if ( v<MIN_SMALL_INTEGER || v>MAX_SMALL_INTEGER ) return new STInteger(this, v);
+		STInteger i = smallIntegers[v - MIN_SMALL_INTEGER];
+		if ( i==null ) {
+			i = new STInteger(this, v);
+			smallIntegers[v - MIN_SMALL_INTEGER] = i;
+		}
+		return i;
+	}
+
+	/** Return the Integer for the result of int arithmetic done in long:
+	 *  an STInteger if it fits, else an {@link STLargeInteger}.
+	 */
+	public STObject newInteger(long v) {
+		if ( v==(int)v ) return newInteger((int)v);
+		return new STLargeInteger(this, BigInteger.valueOf(v));
+	}
+
+	/** Return the Integer for v, normalized to an STInteger if it fits */
+	public STObject newInteger(BigInteger v) {
+		if ( v.bitLength()<32 ) return newInteger(v.intValue());
+		return new STLargeInteger(this, v);
 	}
 
 	public STFloat newFloat(float v) {
@@ -601,63 +846,15 @@ public class VirtualMachine {
 	}
 
 	public STBoolean newBoolean(boolean b) {
-		return new STBoolean(this, b);
+		return b ? trueObject : falseObject;
 	}
 
 	public STNil nil() {
-		return new STNil(this);
+		return nil;
 	}
 
 	public STBoolean stBool(boolean b) {
-		return new STBoolean(this, b);
-	}
-
-	public int consumeShort(int index) {
-		int x = getShort(index);
-		ctx.ip += Bytecode.OperandType.SHORT.sizeInBytes;
-		return x;
-	}
-
-	public int consumeInt(int index) {
-		int x = getShort(index);
-		ctx.ip += Bytecode.OperandType.INT.sizeInBytes;
-		return x;
-	}
-
-	public int consumeFloat(int index) {
-		int x = getShort(index);
-		ctx.ip += Bytecode.OperandType.FLOAT.sizeInBytes;
-		return x;
-	}
-
-	public int consumeLiterals(int index) {
-		int x = getShort(index);
-		ctx.ip += Bytecode.OperandType.LITERAL.sizeInBytes;
-		return x;
-	}
-
-	public int consumeDBG(int index) {
-		int x = getShort(index);
-		ctx.ip += Bytecode.OperandType.DBG_LOCATION.sizeInBytes;
-		return x;
-	}
-
-	public int consumeByte(int index) {
-		int x = getShort(index);
-		ctx.ip += Bytecode.OperandType.BYTE.sizeInBytes;
-		return x;
-	}
-
-	// get short operand out of bytecode sequence
-	public int getShort(int index) {
-		byte[] code = ctx.compiledBlock.bytecode;
-		return Bytecode.getShort(code, index);
-	}
-
-	//get out of bytecode sequence
-	public int getInt(int index) {
-		byte[] code = ctx.compiledBlock.bytecode;
-		return Bytecode.getInt(code, index);
+		return b ? trueObject : falseObject;
 	}
 
 	// D e b u g g i n g
@@ -668,7 +865,7 @@ public class VirtualMachine {
 	}
 
 	void traceInstr() {
-		String instr = Bytecode.disassembleInstruction(ctx.compiledBlock, ctx.ip);
+		String instr = Bytecode.disassembleDecodedInstruction(ctx.compiledBlock, ctx.ip);
 		System.out.printf("%-40s", instr);
 	}
 
@@ -697,6 +894,10 @@ public class VirtualMachine {
 					String.format("(%s)",location),
 					instr);
 			stack.append(s);
+			if ( c.elidedFrames>0 ) {
+				stack.append(String.format("    ... %d tail-calling frame%s elided\n",
+										   c.elidedFrames, c.elidedFrames==1 ? "" : "s"));
+			}
 			c = c.invokingContext;
 		}
 		return stack.toString();
@@ -705,8 +906,8 @@ public class VirtualMachine {
 	public String pContextWorkStack(BlockContext ctx) {
 		StringBuilder buf = new StringBuilder();
 		buf.append("[");
-		for (int i=0; i<=ctx.sp; i++) {
-			if ( i>0 ) buf.append(", ");
+		for (int i=ctx.bp; i<=ctx.sp; i++) {
+			if ( i>ctx.bp ) buf.append(", ");
 			pValue(buf, ctx.stack[i]);
 		}
 		buf.append("]");
@@ -716,9 +917,10 @@ public class VirtualMachine {
 	public String pLocals(BlockContext ctx) {
 		StringBuilder buf = new StringBuilder();
 		buf.append("[");
-		for (int i=0; i<ctx.locals.length; i++) {
+		int n = ctx.compiledBlock.nargs + ctx.compiledBlock.nlocals;
+		for (int i=0; i<n; i++) {
 			if ( i>0 ) buf.append(", ");
-			pValue(buf, ctx.locals[i]);
+			pValue(buf, ctx.getVariable(i));
 		}
 		buf.append("]");
 		return buf.toString();
@@ -0,0 +1,7 @@
+package smalltalk.vm.exceptions;
+
+public class PrimitiveFailed extends VMException {
+	public PrimitiveFailed(String message, String vmStackTrace) {
+		super(message, vmStackTrace);
+	}
+}
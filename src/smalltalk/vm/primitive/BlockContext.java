@@ -2,6 +2,8 @@ package smalltalk.vm.primitive;
 
 import smalltalk.vm.VirtualMachine;
 
+import java.util.Arrays;
+
 /** "The interpreter uses contexts to represent the state of its execution of
  *   CompiledMethods and blocks. A context can be a MethodContext or a
  *   BlockContext. A MethodContext represents the execution of a
@@ -14,9 +16,15 @@ import smalltalk.vm.VirtualMachine;
  *  much deliberation!)
  *
  *  This object represents the execution of a {@link STCompiledBlock} in response
- *  to a message send. This context holds the locals (with arguments first)
- *  and operand stack for computation.  It knows where it is within the method
- *  code block (field ip) and what receiver it's executing the method for.
+ *  to a message send. It knows where it is within the method code block
+ *  (field ip) and what receiver it's executing the method for. Its locals
+ *  (with arguments first) and operand stack are a window, or frame, in the
+ *  VM's single value stack: the caller's pushed arguments become the first
+ *  locals in place and the operand stack follows the locals. Variables that
+ *  nested blocks refer to live instead in a temp vector that the context
+ *  shares with the descriptors of those blocks, so no block ever needs a
+ *  frame after its context has returned. The VM reuses context objects
+ *  unless a block could still return from them.
  *
  *  The VM does not have an explicit invocation stack. The implicit invocation
  *  stack follows the invokingContext chain upwards, just like we
@@ -55,15 +63,32 @@ public class BlockContext {
 	/** The compiled code associated with this context */
 	public STCompiledBlock compiledBlock;
 
-	/** All arguments and local variables associated with this block */
-	public STObject[] locals;
+	/** Index in {@link #stack} of the frame's first argument or local */
+	public int base;
+
+	/** The temp vector holding the arguments and locals listed in
+	 *  {@link STCompiledBlock#capturedLocals}, at their usual indexes; null
+	 *  if there are none. Their slots in the frame are unused.
+	 */
+	public STObject[] temps;
+
+	/** The temp vectors of the contexts enclosing this block, innermost
+	 *  first, as carried by the {@link BlockDescriptor} it was made from.
+	 *  Entries for contexts without captured variables are null.
+	 */
+	public STObject[][] outerTemps;
 
 	/** The instruction pointer that points into compiledBlock.bytcodes */
 	public int ip = 0;
 
-	/** The operand stack for this context */
+	/** The VM's value stack, shared by all active contexts. This context's
+	 *  operand stack runs from bp up to sp.
+	 */
 	public STObject[] stack;
 
+	/** Index in {@link #stack} of the bottom of the operand stack, just past the locals */
+	public int bp;
+
 	/** The operand stack pointer for this context; points at stack top */
 	public int sp = -1;
 
@@ -77,10 +102,10 @@ public class BlockContext {
 	 *  http://stephane.ducasse.free.fr/FreeBooks/BlueBook/Bluebook.pdf
 	 *
 	 *  Because blocks are embedded within methods/blocks, this
-	 *  object knows which block or method surrounds it and
-	 *  also knows the outermost surrounding context: the surrounding
-	 *  method. For example, the following method has two embedded
-	 *  blocks.
+	 *  object knows the outermost surrounding context: the surrounding
+	 *  method. It reaches the variables of the contexts in between
+	 *  through {@link #outerTemps}. For example, the following method
+	 *  has two embedded blocks.
 	 *
 	 *  foo [
 	 *     [ "block 1 starts"
@@ -89,12 +114,8 @@ public class BlockContext {
 	 *  ]
 	 *
 	 *  The outermost context is the BlockContext we create for foo when
-	 *  it's invoked. Block [[^99] value] has both enclosingContext and
-	 *  enclosingMethodContext (both point at the foo context). The
-	 *  innermost block, [^99], has:
-	 *  	1.  enclosingContext pointing at the (block) BlockContext created
-	 *         	during evaluation of block [[^99] value]
-	 *      2.  enclosingMethodContext pointing at the foo BlockContext
+	 *  it's invoked. Both the block [[^99] value] and the innermost block,
+	 *  [^99], have enclosingMethodContext pointing at the foo BlockContext.
 	 *
 	 *  A (block) context object is created from a {@link BlockDescriptor}
 	 *  when we hit it with a "value" message to evaluate itself.
@@ -106,19 +127,8 @@ public class BlockContext {
 	 *  See http://sdmeta.gforge.inria.fr/FreeBooks/LittleSmalltalk/ALittleSmalltalk.pdf
 	 */
 
-	/** The immediately surrounding/enclosing method or block.
-	 *  If this block is a block within the outermost block (i.e., the method),
-	 *  the enclosing context is the same as the enclosing method context.
-	 *
-	 *  This is not the invokingContext, which says who called us.
-	 *
-	 *  This is called "caller" by bluebook p580 and
-	 *  "creator" by little smalltalk p 192 in pdf
-	 */
-	public BlockContext enclosingContext;
-
-	/** A shortcut up the enclosingContext chain to the method in which the
-	 *  block associated with this context is defined.  We need to locate
+	/** The context of the method in which the block associated with this
+	 *  context is defined.  We need to locate
 	 *  the method context that created us so that we can return properly
 	 *  upon METHOD_RETURN bytecode. To perform a return, we unwind the
 	 *  stack until we reach one level above enclosingMethodContext and
@@ -135,12 +145,29 @@ public class BlockContext {
 	 *  can respond appropriately with an error.
 	 *
 	 *  All enclosingMethodContext for blocks defined within method m
-	 *  point at m.
+	 *  point at m. It is null for blocks that never return from m.
 	 *
 	 *  This is called "home" by bluebook p580
 	 */
 	public BlockContext enclosingMethodContext;
 
+	/** True once a block whose home is this context has been created. A ^
+	 *  in that block needs this context to still be on the invoking chain,
+	 *  so the VM must not drop it for a tail send.
+	 */
+	public boolean isHome;
+
+	/** How many contexts the VM dropped between this context and its
+	 *  invokingContext because they ended in a tail send to us.
+	 */
+	public int elidedFrames;
+
+	/** True once a {@link BlockDescriptor} refers to this context as its
+	 *  home; the VM then never reuses this object and sets its
+	 *  invokingContext to {@link #RETURNED} when it finishes.
+	 */
+	public boolean captured;
+
 	// ----- DEBUGGING (dbg instruction) -----
 	public String currentFile;
 	public int currentLine;
@@ -151,71 +178,120 @@ public class BlockContext {
 		vm = null;
 		receiver = null;
 		compiledBlock = null;
-		locals = null;
 	}
 
-	/** Create a context from a STCompiledBlock and a receiver object */
+	/** Create a context from a STCompiledBlock and a receiver object. It
+	 *  gets its frame when the VM pushes it.
+	 */
 	public BlockContext(VirtualMachine vm, STCompiledBlock compiledBlock, STObject receiver) {
 		this.vm = vm;
+		init(compiledBlock, receiver);
+	}
+
+	/** Reset this context for a new activation of compiledBlock. The VM
+	 *  calls this to reuse a context that has finished.
+	 */
+	public void init(STCompiledBlock compiledBlock, STObject receiver) {
 		this.compiledBlock = compiledBlock;
 		this.receiver = receiver;
-		this.stack = new STObject[1000];
-		this.locals = new STObject[compiledBlock.nargs + compiledBlock.nlocals];
-		for(int i=0; i<(compiledBlock.nargs + compiledBlock.nlocals); i++)
-			this.locals[i] = vm.nil();
+		invokingContext = null;
+		enclosingMethodContext = null;
+		temps = null;
+		outerTemps = null;
+		stack = null;
+		ip = 0;
+		sp = -1;
+		isHome = false;
+		captured = false;
+		elidedFrames = 0;
+		currentFile = null;
+		currentLine = 0;
+		currentCharPos = 0;
+		prev_ip = -1;
 	}
 
-	/** Create a BlockContext from a {@link BlockDescriptor} as a
-	 *  result of a "value" message sent to force evaluation. The
-	 *  descriptor says which block to execute and knows the
-	 *  surrounding context.  All of this is copied to the
-	 *  BlockContext.
-	 *
-	 *  To execute "[...] value", we execute BLOCK followed by
-	 *  SEND bytecodes. BLOCK creates a descriptor and pushes it
-	 *  onto the stack of the currently active context. SEND looks
-	 *  up the "value" selector in the BlockDescriptor and finds a
-	 *  primitive method.  The VM does the usual thing and creates
-	 *  a method context to invoke the primitive method and starts
-	 *  executing the "native" java code of the primitive method
-	 *  via performPrimitive().
-	 *
-	 *  The receiver for the value method is the block descriptor.
-	 *  The receiver in the block context must be the receiver of
-	 *  the enclosing method context (that defined the block).
-	 *  This way methods invoked within a block such as "self
-	 *  msg."  interpret self as the right object (the receiver of
-	 *  the enclosing method).
-	 */
-	public BlockContext(VirtualMachine vm, BlockDescriptor descriptor) {
-		this(vm, descriptor.block, descriptor.receiver);
-		this.enclosingContext = descriptor.enclosingContext;
-		this.enclosingMethodContext = descriptor.enclosingMethodContext;
-		this.vm = vm;
+	/** Give this context the frame in stack starting at base. The first
+	 *  nargs slots already hold the arguments; the other locals start as nil.
+	 *  Captured arguments are copied into a new temp vector.
+	 */
+	public void setFrame(STObject[] stack, int base) {
+		this.stack = stack;
+		this.base = base;
+		int nargs = compiledBlock.nargs;
+		this.bp = base + nargs + compiledBlock.nlocals;
+		this.sp = bp - 1;
+		Arrays.fill(stack, base + nargs, bp, vm.nil());
+		if ( compiledBlock.capturedLocals!=null ) {
+			temps = new STObject[nargs + compiledBlock.nlocals];
+			Arrays.fill(temps, vm.nil());
+			for (int i : compiledBlock.capturedLocals) {
+				if ( i<nargs ) temps[i] = stack[base + i];
+			}
+		}
 	}
 
-	public void push(STObject o) {
-		this.stack[++sp] = o;
+	/** Move this context's frame down to start at newBase. Only valid
+	 *  before the context has pushed any operands.
+	 */
+	public void moveFrame(int newBase) {
+		int delta = base - newBase;
+		System.arraycopy(stack, base, stack, newBase, bp - base);
+		base = newBase;
+		bp -= delta;
+		sp -= delta;
+	}
+
+	/** A block descriptor that can return from this context now refers to
+	 *  it, so it must stay this activation even after it returns.
+	 */
+	public void capture() {
+		captured = true;
 	}
-	public STObject pop() { return stack[sp--]; }
-	public STObject top() { return stack[sp]; }
 
-	/** If there is no enclosing context, we must be a method. */
-	public boolean isBlock() {
-		if(enclosingContext != null)
-			return true;
-		else
-			return true;
+	/** Copy the arguments and locals kept in the frame into the temp
+	 *  vector, making a full-size one if there is none, so blocks created
+	 *  now can reach them. The VM does this for the send that stands in
+	 *  for open-coded control flow whose condition isn't a Boolean.
+	 */
+	public void spillLocals() {
+		int n = compiledBlock.nargs + compiledBlock.nlocals;
+		if ( temps==null ) temps = new STObject[n];
+		for (int i = 0; i<n; i++) {
+			if ( !compiledBlock.isCaptured(i) ) temps[i] = stack[base + i];
+		}
 	}
 
-	public void setLocals(STObject[] extractObjs, int args) {
-		if(args > locals.length)
-			this.locals = new STObject[args];
-		for(int i = 0; i < args; i++){
-			this.locals[i] = extractObjs[i];
+	/** Copy back into the frame what {@link #spillLocals} copied out */
+	public void restoreLocals() {
+		int n = compiledBlock.nargs + compiledBlock.nlocals;
+		for (int i = 0; i<n; i++) {
+			if ( !compiledBlock.isCaptured(i) ) stack[base + i] = temps[i];
 		}
 	}
 
+	public STObject getLocal(int i) { return stack[base + i]; }
+	public void setLocal(int i, STObject o) { stack[base + i] = o; }
+
+	/** The temp vector of the context delta scopes out; 0 is this one's */
+	public STObject[] getTemps(int delta) {
+		return delta==0 ? temps : outerTemps[delta - 1];
+	}
+
+	/** The value of argument or local i, wherever it lives */
+	public STObject getVariable(int i) {
+		return compiledBlock.isCaptured(i) ? temps[i] : getLocal(i);
+	}
+
+	public void push(STObject o) {
+		assert sp+1<bp+compiledBlock.maxStack : "operand stack overflow in "+compiledBlock.qualifiedName;
+		this.stack[++sp] = o;
+	}
+	public STObject pop() {
+		assert sp>=bp : "operand stack underflow in "+compiledBlock.qualifiedName;
+		return stack[sp--];
+	}
+	public STObject top() { return stack[sp]; }
+
 	@Override
 	public String toString() {
 		StringBuilder buf = new StringBuilder();
@@ -19,16 +19,16 @@ public class BlockDescriptor extends STObject {
 	/** This object is a descriptor for which compiled block? */
 	public final STCompiledBlock block;
 
-	/** The immediately surrounding/enclosing method or block.
-	 *  If this block is a block within the outermost block (i.e., the method),
-	 *  the enclosing context is the same as the enclosing method context.
+	/** The temp vectors of the method or blocks around this block, innermost
+	 *  first: the creating context's own, then the ones it was given. Holds
+	 *  {@link STCompiledBlock#outerReach} of them; null if none.
 	 *
-	 *  See {@link BlockContext#enclosingContext} for more details.
+	 *  See {@link BlockContext#outerTemps} for more details.
 	 */
-	public final BlockContext enclosingContext;
+	public final STObject[][] outerTemps;
 
-	/** A shortcut up the enclosingContext chain to the method in which the
-	 *  block associated with this context is defined.  We need to locate
+	/** The context of the method in which the block associated with this
+	 *  context is defined; null unless the block returns from it.  We need to locate
 	 *  the method context that created us so that we can return properly
 	 *  upon METHOD_RETURN bytecode. To perform a return, we unwind the
 	 *  stack until we reach one level above enclosingMethodContext and
@@ -55,11 +55,20 @@ public class BlockDescriptor extends STObject {
 	 */
 	public final STObject receiver;
 
-	public BlockDescriptor(STCompiledBlock blk, BlockContext activeContext, BlockContext enclosingMethodContext) {
-		super(activeContext.vm.lookupClass("BlockDescriptor"));
-		enclosingContext = activeContext;
+	/** Describe a block that needs no context around it, only the receiver
+	 *  if it refers to self; see {@link STCompiledBlock#closure}.
+	 */
+	public BlockDescriptor(VirtualMachine vm, STCompiledBlock blk, STObject receiver) {
+		this(vm, blk, receiver, null, null);
+	}
+
+	public BlockDescriptor(VirtualMachine vm, STCompiledBlock blk, STObject receiver,
+						   STObject[][] outerTemps, BlockContext enclosingMethodContext)
+	{
+		super(vm.blockDescriptorClass);
 		block = blk;
-		receiver = activeContext.receiver;
+		this.receiver = receiver;
+		this.outerTemps = outerTemps;
 		this.enclosingMethodContext = enclosingMethodContext;
 	}
 
@@ -70,29 +79,30 @@ public class BlockDescriptor extends STObject {
 		STObject receiverObj = ctx.stack[firstArg-1];
 		BlockDescriptor receiver = (BlockDescriptor)receiverObj;
 		STObject result = vm.nil();
+		if ( receiver.block.nargs!=nArgs ) { // the arguments become the block's first locals in place
+			vm.error("MismatchedBlockArg", "wrong number of arguments for "+receiver.block.qualifiedName+": "+nArgs);
+		}
 		switch ( primitive ) {
 			case BlockDescriptor_VALUE:
 				ctx.sp -= 1;                                        //1 receiver
 				if (receiver instanceof BlockDescriptor) {
-					vm.pushctx = new BlockContext(vm, receiver);
+					vm.pushctx = vm.newContext(receiver);
 					result = null;
 				} else
 					result = vm.nil();
 				break;
 			case BlockDescriptor_VALUE_1_ARG:
-				vm.extractObjs = vm.getSTObjectArgs(ctx, nArgs);
 				ctx.sp -= 2;                                        //1 receiver & 1 argument
 				if (receiver instanceof BlockDescriptor) {
-					vm.pushctx = new BlockContext(vm, receiver);
+					vm.pushctx = vm.newContext(receiver);
 					result = null;
 				} else
 					result = vm.nil();
 				break;
 			case BlockDescriptor_VALUE_2_ARGS:
-				vm.extractObjs = vm.getSTObjectArgs(ctx, nArgs);
 				ctx.sp -= 3;                                        //1 receiver & 2 arguments
 				if (receiver instanceof BlockDescriptor) {
-					vm.pushctx = new BlockContext(vm, receiver);
+					vm.pushctx = vm.newContext(receiver);
 					result = null;
 				} else
 					result = vm.nil();
@@ -19,6 +19,13 @@ import smalltalk.vm.VirtualMachine;
  *  perform method.  The perform() method returns a value that {@link
  *  //smalltalk.vm.VirtualMachine#sendMessage} pushes onto stack if
  *  non-null.
+ *
+ *  A primitive that can't handle its operands, such as Integer_ADD with
+ *  a Float argument, returns {@link #FAILED} instead. The VM then runs
+ *  the Smalltalk code written after the primitive, which sees the same
+ *  receiver and arguments:
+ *
+ * 		+ y <primitive:#Integer_ADD> [ ^self asFloat + y ]
  */
 public enum Primitive {
 	Object_Class_ERROR(STMetaClassObject::perform),
@@ -76,6 +83,9 @@ public enum Primitive {
 	TranscriptStream_SHOW(VirtualMachine::TranscriptStream_SHOW)
 	;
 
+	/** Returned by a primitive that fails */
+	public static final STObject FAILED = new STObject(null);
+
 	/** Effectively a pointer to a static perform method */
 	private final PrimitiveImplPtr performer;
 
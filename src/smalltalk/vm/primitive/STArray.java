@@ -6,7 +6,7 @@ public class STArray extends STObject {
 	public STObject[] elements;
 
 	public STArray(VirtualMachine vm, int n, STObject fill) {
-		super(vm.lookupClass("Array"));
+		super(vm.arrayClass);
 		elements = new STObject[n];
 		STString s1 = (STString) fill;
 		for(int i=0; i<n; i++){
@@ -15,7 +15,7 @@ public class STArray extends STObject {
 	}
 
 	public STArray(VirtualMachine vm, int n) {
-		super(vm.lookupClass("Array"));
+		super(vm.arrayClass);
 		elements = new STObject[n];
 		for(int i=1; i<=n; i++){
 			elements[i-1] = vm.ctx.stack[vm.ctx.sp - n + i];
@@ -23,7 +23,7 @@ public class STArray extends STObject {
 	}
 
 	public STArray(VirtualMachine vm, int n, boolean args) {
-		super(vm.lookupClass("Array"));
+		super(vm.arrayClass);
 		if(!args){
 			elements = new STObject[10];
 			for(int i=0; i<=9; i++){
@@ -51,30 +51,27 @@ public class STArray extends STObject {
 					result = new STArray(vm, nArgs, false);
 				}
 				else{
-					if(ctx.stack[firstArg] instanceof STInteger){
-						STInteger ropnd = (STInteger) ctx.stack[firstArg];
-						ctx.sp -= 2;
-						result = new STArray(vm, ropnd.v, true);
-					}else if(ctx.stack[firstArg] instanceof STString){
-						STString ropnd = (STString) ctx.stack[firstArg];
-						ctx.sp -= 2;
-						result = new STArray(vm, Integer.parseInt(ropnd.s), true);
-					}
+					if ( !(ctx.stack[firstArg] instanceof STInteger) ) return Primitive.FAILED;
+					STInteger ropnd = (STInteger) ctx.stack[firstArg];
+					ctx.sp -= 2;
+					result = new STArray(vm, ropnd.v, true);
 				}
 				break;
 			case Array_SIZE:
 				ctx.sp--;
 				STArray ropnd = (STArray) receiver;
 				int count = ropnd.elements.length;
-				result = new STInteger(vm, count);
+				result = vm.newInteger(count);
 				break;
 			case Array_AT:
+				if ( !(ctx.stack[firstArg] instanceof STInteger) ) return Primitive.FAILED;
 				STArray rAt = (STArray) receiver;
 				STInteger indexAt = (STInteger) ctx.stack[firstArg];		//fetch the first argument from stack which will be the index to put the value in
 				result = rAt.elements[indexAt.v - 1];
 				ctx.sp -= 2;
 				break;
 			case Array_AT_PUT:
+				if ( !(ctx.stack[firstArg] instanceof STInteger) ) return Primitive.FAILED;
 				STArray r = (STArray) receiver;
 				STInteger index = (STInteger) ctx.stack[firstArg];		//fetch the first argument from stack which will be the index to put the value in
 				r.elements[index.v - 1] = ctx.stack[firstArg + 1];
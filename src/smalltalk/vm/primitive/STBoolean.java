@@ -7,7 +7,7 @@ public class STBoolean extends STObject {
 	public final boolean b;
 
 	public STBoolean(VirtualMachine vm, boolean b) {
-		super(vm.lookupClass("Boolean"));
+		super(vm.booleanClass);
 		this.b = b;
 	}
 
@@ -24,7 +24,7 @@ public class STBoolean extends STObject {
 				ropnd = ctx.stack[firstArg];
 				ctx.sp -= 2;										//1 argument and 1 receiver
 				if(ropnd instanceof BlockDescriptor && receiver.b){
-					vm.pushctx = new BlockContext(vm, (BlockDescriptor) ropnd);
+					vm.pushctx = vm.newContext((BlockDescriptor) ropnd);
 					result = null;
 				}
 				else
@@ -35,11 +35,11 @@ public class STBoolean extends STObject {
 				STObject blk2 = ctx.stack[firstArg + 1];			//Block2 as the second argument
 				ctx.sp -= 3;										//2 arguments and 1 receiver
 				if(blk1 instanceof BlockDescriptor && receiver.b){					//If Receiver is true then evaluate the first Block
-					vm.pushctx = new BlockContext(vm, (BlockDescriptor) blk1);
+					vm.pushctx = vm.newContext((BlockDescriptor) blk1);
 					result = null;
 				}
 				else{																//If Receiver is false then evaluate the second Block
-					vm.pushctx = new BlockContext(vm, (BlockDescriptor) blk2);
+					vm.pushctx = vm.newContext((BlockDescriptor) blk2);
 					result = null;
 				}
 				break;
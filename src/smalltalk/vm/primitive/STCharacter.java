@@ -6,7 +6,7 @@ public class STCharacter extends STObject {
 	public final int c;
 
 	public STCharacter(VirtualMachine vm, int c) {
-		super(vm.lookupClass("Character"));
+		super(vm.characterClass);
 		this.c = c;
 	}
 
@@ -14,14 +14,20 @@ public class STCharacter extends STObject {
 		VirtualMachine vm = ctx.vm;
 		int firstArg = ctx.sp - nArgs + 1;
 		STObject receiverObj = ctx.stack[firstArg - 1];
-		STCharacter receiver = (STCharacter)receiverObj;
 		STObject result = vm.nil();
 		int v;
 		STObject ropnd;
 		switch ( primitive ) {
 			case Character_ASINTEGER:
 				ctx.sp--;
-				result = new STInteger(vm, receiver.c);
+				result = vm.newInteger(((STCharacter)receiverObj).c);
+				break;
+			case Character_Class_NEW:
+				ropnd = ctx.stack[firstArg];
+				if ( !(ropnd instanceof STInteger) ) return Primitive.FAILED;
+				ctx.sp -= 2;
+				v = ((STInteger)ropnd).v;
+				result = new STCharacter(vm, v);
 				break;
 		}
 
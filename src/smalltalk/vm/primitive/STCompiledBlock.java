@@ -5,6 +5,12 @@ import org.stringtemplate.v4.ST;
 import smalltalk.compiler.STBlock;
 import smalltalk.compiler.STPrimitiveMethod;
 import smalltalk.vm.Bytecode;
+import smalltalk.vm.InlineCache;
+import smalltalk.vm.SelectorTable;
+import smalltalk.vm.VirtualMachine;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /** This object represents the compiled code for a block or method.
  *  It holds all of the bytecode and meta information about the block, such
@@ -18,8 +24,8 @@ import smalltalk.vm.Bytecode;
  *  method.
  *
  *  All blocks can reference literals method names and string literals ref'd within.
- *  These are stored in the literals field. The associated STString objects
- *  are cached in literalsAsSTStrings.
+ *  These are stored in the literals field. The STString, STFloat and
+ *  STCharacter objects pushed by the code are made once, into constants.
  *
  *  This object has a reference to the lexically enclosing class' metaclass,
  *  which is set by {@link STMetaClassObject} during construction.
@@ -27,10 +33,11 @@ import smalltalk.vm.Bytecode;
 public class STCompiledBlock implements Comparable<STCompiledBlock>{
 
 	public static final String testStringTemplate =
-		"name: <name>\n" +
+		"name: <if(isClassMethod)>static <endif><name>\n" +
 		"qualifiedName: <qualifiedName>\n" +
 		"nargs: <nargs>\n" +
 		"nlocals: <nlocals>\n"+
+		"maxStack: <maxStack>\n"+
 		"literals: <literals:{s | '<s>'}; separator={,}>\n" +
 		"<assembly>"+
 		"<if(blocks)>" +
@@ -40,10 +47,11 @@ public class STCompiledBlock implements Comparable<STCompiledBlock>{
 
 	/** currently unused, but would be used to serialize a compiled block to disk */
 	public static final String serializeTemplate =
-		"name: <name>\n" +
+		"name: <if(isClassMethod)>static <endif><name>\n" +
 		"qualifiedName: <qualifiedName>\n" +
 		"nargs: <nargs>\n" +
 		"nlocals: <nlocals>\n"+
+		"maxStack: <maxStack>\n"+
 		"literals: <literals:{s | `<s>`}; separator={,}>\n" + // unique separator
 		"bytecode: <bytecode; separator={ }>" +
 		"<if(blocks)>" +
@@ -63,8 +71,35 @@ public class STCompiledBlock implements Comparable<STCompiledBlock>{
 	/** The set of strings and symbols referenced by the {@link #bytecode} field. */
 	public String[]   literals;
 
-	/** Cache STString objects for literals */
-	public STString[] literalsAsSTStrings;
+	/** The pre-decoded form of {@link #bytecode} that the VM executes. It
+	 *  has the same layout as bytecode: code[ip] holds the opcode of the
+	 *  instruction at byte address ip and the slots after it, up to the next
+	 *  instruction, hold its operands already decoded. Operands that refer
+	 *  to objects are indexes into {@link #constants}. Built by {@link #decode()}
+	 *  when the enclosing class is loaded.
+	 *
+	 *  Because addresses are the same in both forms, ip, traces and error
+	 *  messages always refer to the byte[] form.
+	 */
+	public int[] code;
+
+	/** The objects referenced by {@link #code}: the objects pushed by
+	 *  PUSH_LITERAL, PUSH_FLOAT and PUSH_CHAR, global names, nested compiled
+	 *  blocks and the {@link InlineCache} of each send site. Pushed objects
+	 *  are shared by every execution, which is safe because strings, floats
+	 *  and characters are immutable. See {@link #bindTo}.
+	 */
+	public Object[] constants;
+
+	/** The Java values decode() put in {@link #constants}, before
+	 *  {@link #bindTo} replaced the pushed ones with Smalltalk objects.
+	 */
+	protected Object[] decodedConstants;
+
+	/** The VM whose objects, classes and caches {@link #constants},
+	 *  {@link #code} and {@link #cleanDescriptor} hold
+	 */
+	protected VirtualMachine boundTo;
 
 	/** The byte code instructions for this specific block, if not primitive. */
 	public byte[]     bytecode;
@@ -84,12 +119,85 @@ public class STCompiledBlock implements Comparable<STCompiledBlock>{
 	/** The number of local variables defined within the block, not including the arguments */
 	public int nlocals;
 
+	/** The most operands the block ever has on its stack at once, as
+	 *  computed by the compiler; the size of each context's operand stack.
+	 */
+	public int maxStack;
+
 	/** A pointer to the primitive implementing the method, if this field
-	 *  is non-null.
+	 *  is non-null. Resolved from {@link #primitiveName} when the enclosing
+	 *  class is linked.
  	 */
 	public Primitive primitive;
 
-	/** True if method was defined as class method in Smalltalk */
+	/** The name in the method's &lt;primitive:#Name&gt;, as recorded by the
+	 *  compiler; null for Smalltalk methods and blocks.
+	 */
+	public String primitiveName;
+
+	/** Indexes of the arguments and locals that blocks nested in this one
+	 *  refer to, as recorded by the compiler; null if there are none. The
+	 *  context keeps these in its temp vector, not its frame, so that the
+	 *  descriptors of those blocks can share them. See
+	 *  {@link BlockContext#temps}.
+	 */
+	public int[] capturedLocals;
+
+	/** How much of the context that creates a [...] block the block needs.
+	 *  A full closure refers to outer locals or returns from its method, so
+	 *  it needs the temp vectors or the home context of the creating
+	 *  context. A self-only closure refers only to
+	 *  self or fields, so it just needs the receiver. A clean block needs
+	 *  nothing; one descriptor serves every evaluation of its BLOCK
+	 *  instruction. Nested blocks count as part of the block.
+	 */
+	public static final int FULL_CLOSURE		= 0;
+	public static final int SELF_CLOSURE		= 1;
+	public static final int CLEAN_BLOCK			= 2;
+
+	/** What kind of block this is; set by {@link #decode()}. Always
+	 *  {@link #FULL_CLOSURE} for methods.
+	 */
+	public int closure = FULL_CLOSURE;
+
+	/** The shared descriptor of a clean block, made on first use. Dropped
+	 *  when the block is bound to another VM; see {@link #bindTo}.
+	 */
+	public BlockDescriptor cleanDescriptor;
+
+	/** How many scopes out this block and its nested blocks reach; its
+	 *  descriptor carries the temp vectors of that many enclosing contexts.
+	 *  Only meaningful once {@link #closure} is set.
+	 */
+	public int outerReach = -1;
+
+	/** Does this block or a block nested in it return from the method? */
+	public boolean usesReturn;
+
+	/** Does this block or a block nested in it refer to self or a field? */
+	public boolean usesSelf;
+
+	/** Kinds of quick methods, which the VM answers at the send site
+	 *  without creating a context. See {@link #quick}.
+	 */
+	public static final int NOT_QUICK			= 0;
+	public static final int QUICK_SELF			= 1; // ^self, or empty body
+	public static final int QUICK_FIELD			= 2; // ^field
+	public static final int QUICK_SET_FIELD		= 3; // field := arg, answering self
+	public static final int QUICK_NIL			= 4; // ^nil
+	public static final int QUICK_TRUE			= 5; // ^true
+	public static final int QUICK_FALSE			= 6; // ^false
+	public static final int QUICK_INT			= 7; // ^integer literal
+
+	/** Which kind of quick method this is, if any; set by {@link #decode()}.
+	 *  {@link #quickOperand} holds the field index or integer value.
+	 */
+	public int quick = NOT_QUICK;
+	public int quickOperand;
+
+	/** True if method was defined as class method in Smalltalk. Class
+	 *  methods live in {@link STMetaClassObject#classMethods}.
+	 */
 	public boolean isClassMethod;
 
 	public STCompiledBlock(STBlock blk) {
@@ -97,6 +205,282 @@ public class STCompiledBlock implements Comparable<STCompiledBlock>{
 
 	public boolean isPrimitive() { return primitive!=null; }
 
+	/** Translate the bytecode of this method and of all its nested blocks
+	 *  into {@link #code} and bind its primitive, if any. Selectors are
+	 *  interned and every send site gets its own {@link InlineCache}.
+	 *  Calling this more than once is harmless.
+	 */
+	public void decode() {
+		if ( primitiveName!=null ) primitive = Primitive.valueOf(primitiveName);
+		decode(blocks);
+		if ( primitive==null ) classifyQuick();
+		if ( blocks!=null ) {
+			for (STCompiledBlock blk : blocks) {
+				if ( blk!=this ) blk.classifyClosure(blocks);
+			}
+		}
+	}
+
+	/** Work out {@link #closure} from the instructions of this block and of
+	 *  the blocks nested in it. A local at scope delta d in a nested block
+	 *  is at delta d-1 from here.
+	 */
+	protected void classifyClosure(STCompiledBlock[] methodBlocks) {
+		if ( outerReach>=0 ) return;
+		outerReach = 0;
+		int ip = 0;
+		while ( ip<bytecode.length ) {
+			short op = bytecode[ip];
+			switch ( op ) {
+				case Bytecode.SELF :
+				case Bytecode.PUSH_FIELD :
+				case Bytecode.STORE_FIELD :
+					usesSelf = true;
+					break;
+				case Bytecode.RETURN :
+					usesReturn = true;
+					break;
+				case Bytecode.PUSH_LOCAL :
+				case Bytecode.STORE_LOCAL :
+					outerReach = Math.max(outerReach, Bytecode.getShort(bytecode, ip+1));
+					break;
+				case Bytecode.BLOCK :
+					STCompiledBlock nested = methodBlocks[Bytecode.getShort(bytecode, ip+1)];
+					nested.classifyClosure(methodBlocks);
+					outerReach = Math.max(outerReach, nested.outerReach - 1);
+					usesSelf |= nested.usesSelf;
+					usesReturn |= nested.usesReturn;
+					break;
+			}
+			ip += Bytecode.sizeOfInstruction(op);
+		}
+		if ( usesReturn || outerReach>0 ) closure = FULL_CLOSURE;
+		else if ( usesSelf ) closure = SELF_CLOSURE;
+		else closure = CLEAN_BLOCK;
+	}
+
+	/** Recognize methods that only answer self, a field or a constant, or
+	 *  only store their argument into a field. Only the instructions up to
+	 *  the first return count; DBG instructions are ignored.
+	 */
+	protected void classifyQuick() {
+		short[] ops = new short[5];
+		int[] opnds = new int[5];
+		int n = 0;
+		int ip = 0;
+		while ( ip<bytecode.length && n<ops.length ) {
+			short op = bytecode[ip];
+			if ( op!=Bytecode.DBG ) {
+				ops[n] = op;
+				switch ( op ) {
+					case Bytecode.PUSH_INT :
+						opnds[n] = Bytecode.getInt(bytecode, ip+1);
+						break;
+					case Bytecode.PUSH_FIELD :
+					case Bytecode.STORE_FIELD :
+						opnds[n] = Bytecode.getShort(bytecode, ip+1);
+						break;
+					case Bytecode.PUSH_LOCAL : // nonzero unless first arg of this method
+						opnds[n] = Bytecode.getShort(bytecode, ip+1) | Bytecode.getShort(bytecode, ip+3);
+						break;
+				}
+				n++;
+				if ( op==Bytecode.RETURN ) break;
+			}
+			ip += Bytecode.sizeOfInstruction(op);
+		}
+		if ( n==2 && ops[1]==Bytecode.RETURN ) {
+			switch ( ops[0] ) {
+				case Bytecode.SELF : quick = QUICK_SELF; break;
+				case Bytecode.NIL : quick = QUICK_NIL; break;
+				case Bytecode.TRUE : quick = QUICK_TRUE; break;
+				case Bytecode.FALSE : quick = QUICK_FALSE; break;
+				case Bytecode.PUSH_FIELD : quick = QUICK_FIELD; break;
+				case Bytecode.PUSH_INT : quick = QUICK_INT; break;
+			}
+			quickOperand = opnds[0];
+		}
+		else if ( n==5 && nargs==1 && ops[0]==Bytecode.PUSH_LOCAL && opnds[0]==0 &&
+				  ops[1]==Bytecode.STORE_FIELD && ops[2]==Bytecode.POP &&
+				  ops[3]==Bytecode.SELF && ops[4]==Bytecode.RETURN )
+		{
+			quick = QUICK_SET_FIELD;
+			quickOperand = opnds[1];
+		}
+	}
+
+
+	protected void decode(STCompiledBlock[] methodBlocks) {
+		if ( code!=null ) return;
+		byte[] bytes = bytecode!=null ? bytecode : new byte[0];
+		int[] code = new int[bytes.length];
+		List<Object> constants = new ArrayList<>();
+		List<Integer> fallbacks = new ArrayList<>();
+		int ip = 0;
+		while ( ip<bytes.length ) {
+			int op = bytes[ip];
+			code[ip] = op;
+			switch ( op ) {
+				case Bytecode.PUSH_CHAR :
+					code[ip+1] = constants.size();
+					constants.add((char)Bytecode.getShort(bytes, ip+1));
+					break;
+				case Bytecode.PUSH_FLOAT :
+					code[ip+1] = constants.size();
+					constants.add(Float.intBitsToFloat(Bytecode.getInt(bytes, ip+1)));
+					break;
+				case Bytecode.PUSH_FIELD :
+				case Bytecode.STORE_FIELD :
+				case Bytecode.PUSH_ARRAY :
+					code[ip+1] = Bytecode.getShort(bytes, ip+1);
+					break;
+				case Bytecode.PUSH_INT :
+					code[ip+1] = Bytecode.getInt(bytes, ip+1);
+					break;
+				case Bytecode.PUSH_LOCAL :
+				case Bytecode.STORE_LOCAL :
+					code[ip+1] = Bytecode.getShort(bytes, ip+1); // delta to scope
+					code[ip+2] = Bytecode.getShort(bytes, ip+3); // index in scope
+					if ( code[ip+1]>0 || isCaptured(code[ip+2]) ) { // lives in a temp vector
+						code[ip] = op==Bytecode.PUSH_LOCAL ? Bytecode.PUSH_TEMP : Bytecode.STORE_TEMP;
+					}
+					break;
+				case Bytecode.PUSH_LITERAL :
+				case Bytecode.PUSH_GLOBAL :
+					code[ip+1] = constants.size();
+					constants.add(literals[Bytecode.getShort(bytes, ip+1)]);
+					break;
+				case Bytecode.SEND :
+				case Bytecode.SEND_SUPER :
+					int lit = Bytecode.getShort(bytes, ip+3);
+					code[ip+1] = Bytecode.getShort(bytes, ip+1); // nargs
+					code[ip+2] = SelectorTable.intern(literals[lit]);
+					code[ip+3] = constants.size();
+					code[ip+4] = lit;
+					constants.add(new InlineCache());
+					break;
+				case Bytecode.JUMP :
+					code[ip+1] = ip + Bytecode.sizeOfInstruction(op) + Bytecode.getInt(bytes, ip+1); // target
+					break;
+				case Bytecode.JUMP_IF_TRUE :
+				case Bytecode.JUMP_IF_FALSE :
+					code[ip+1] = ip + Bytecode.sizeOfInstruction(op) + Bytecode.getInt(bytes, ip+1); // target
+					code[ip+2] = Bytecode.getShort(bytes, ip+5); // selector literal
+					int fallback = Bytecode.getInt(bytes, ip+7);
+					code[ip+3] = fallback!=0 ? ip + Bytecode.sizeOfInstruction(op) + fallback : -1;
+					if ( fallback!=0 ) fallbacks.add(code[ip+3]);
+					break;
+				case Bytecode.BLOCK :
+					code[ip+1] = constants.size();
+					constants.add(methodBlocks[Bytecode.getShort(bytes, ip+1)]);
+					break;
+				case Bytecode.DBG :
+					code[ip+1] = constants.size();
+					constants.add(literals[Bytecode.getShort(bytes, ip+1)]);
+					code[ip+2] = Bytecode.getShort(bytes, ip+3); // line
+					code[ip+3] = Bytecode.getShort(bytes, ip+5); // char position
+					break;
+			}
+			ip += Bytecode.sizeOfInstruction(op);
+		}
+		for (int f : fallbacks) { // the first JUMP after a fallback send ends it
+			while ( bytes[f]!=Bytecode.JUMP ) f += Bytecode.sizeOfInstruction(bytes[f]);
+			code[f] = Bytecode.JUMP_RESTORE_LOCALS;
+		}
+		fuse(bytes, code);
+		this.constants = constants.toArray();
+		this.decodedConstants = this.constants.clone();
+		this.code = code;
+		if ( blocks!=null ) {
+			for (STCompiledBlock blk : blocks) {
+				if ( blk!=this ) blk.decode(methodBlocks);
+			}
+		}
+	}
+
+	/** Make this block's code work in vm. The entries of {@link #constants}
+	 *  that PUSH_LITERAL, PUSH_FLOAT and PUSH_CHAR refer to become vm's
+	 *  Smalltalk objects for the Java values that decode() found. Those
+	 *  need the VM's String, Float and Character classes, which don't exist
+	 *  yet while classes are linked, so the VM calls this afterwards.
+	 *
+	 *  Several VMs can be made from one symbol table and take turns running
+	 *  its code, so the VM calls this again whenever it starts to run.
+	 *  Binding to another VM makes new objects, drops the clean block
+	 *  descriptor, and starts every send site over with an empty
+	 *  {@link InlineCache} and its plain SEND, because those hold the other
+	 *  VM's classes and methods. Binding to the same VM again is harmless.
+	 */
+	public void bindTo(VirtualMachine vm) {
+		if ( boundTo==vm ) return;
+		boolean rebinding = boundTo!=null;
+		boundTo = vm;
+		cleanDescriptor = null;
+		byte[] bytes = bytecode!=null ? bytecode : new byte[0];
+		int ip = 0;
+		while ( ip<bytes.length ) {
+			short op = bytes[ip];
+			if ( op==Bytecode.PUSH_LITERAL || op==Bytecode.PUSH_FLOAT || op==Bytecode.PUSH_CHAR ) {
+				Object v = decodedConstants[code[ip+1]];
+				if ( v instanceof String ) constants[code[ip+1]] = vm.newString((String)v);
+				else if ( v instanceof Float ) constants[code[ip+1]] = vm.newFloat((Float)v);
+				else if ( v instanceof Character ) constants[code[ip+1]] = vm.newCharacter((Character)v);
+			}
+			else if ( rebinding && (op==Bytecode.SEND || op==Bytecode.SEND_SUPER) ) {
+				constants[code[ip+3]] = new InlineCache();
+				if ( Bytecode.isQuickenedSend(code[ip]) ) code[ip] = Bytecode.SEND;
+			}
+			ip += Bytecode.sizeOfInstruction(op);
+		}
+		if ( blocks!=null ) {
+			for (STCompiledBlock blk : blocks) {
+				if ( blk!=this ) blk.bindTo(vm);
+			}
+		}
+	}
+
+	/** Is local i of this block kept in its temp vector? */
+	public boolean isCaptured(int i) {
+		if ( capturedLocals==null ) return false;
+		for (int c : capturedLocals) {
+			if ( c==i ) return true;
+		}
+		return false;
+	}
+
+	/** Overwrite the first opcode of each run of instructions that matches
+	 *  a superinstruction. Runs do not overlap; the component instructions
+	 *  are left intact so any address within a run stays executable.
+	 *  Instructions that decode() already rewrote don't match.
+	 */
+	protected static void fuse(byte[] bytes, int[] code) {
+		int ip = 0;
+		while ( ip<bytes.length ) {
+			int next = ip + Bytecode.sizeOfInstruction(bytes[ip]);
+			for (short fused = 0; fused<Bytecode.components.length; fused++) {
+				int end = matchComponents(bytes, code, ip, Bytecode.components[fused]);
+				if ( end>0 ) {
+					code[ip] = fused;
+					next = end;
+					break;
+				}
+			}
+			ip = next;
+		}
+	}
+
+	/** If the instructions starting at ip are exactly ops, return the address
+	 *  just past them; else return -1.
+	 */
+	protected static int matchComponents(byte[] bytes, int[] code, int ip, short[] ops) {
+		if ( ops==null ) return -1;
+		for (short op : ops) {
+			if ( ip>=bytes.length || bytes[ip]!=op || code[ip]!=op ) return -1;
+			ip += Bytecode.sizeOfInstruction(op);
+		}
+		return ip;
+	}
+
 	public String toTestString() { return getAsString(testStringTemplate); }
 
 	public String serialize() { return getAsString(serializeTemplate); }
@@ -104,9 +488,11 @@ public class STCompiledBlock implements Comparable<STCompiledBlock>{
 	public String getAsString(String templateString) {
 		ST template = new ST(templateString);
 		template.add("name", name);
+		template.add("isClassMethod", isClassMethod);
 		template.add("qualifiedName", qualifiedName);
 		template.add("nargs", nargs);
 		template.add("nlocals", nlocals);
+		template.add("maxStack", maxStack);
 		template.add("literals", literals);
 		template.add("bytecode", bytecode);
 		template.add("assembly", Bytecode.disassemble(this, 0));
@@ -9,7 +9,7 @@ public class STFloat extends STObject {
 	public final float v;
 
 	public STFloat(VirtualMachine vm, float v) {
-		super(vm.lookupClass("Float"));
+		super(vm.floatClass);
 		this.v = v;
 	}
 
@@ -20,6 +20,7 @@ public class STFloat extends STObject {
 		STObject result = vm.nil();
 		float v;
 		STObject ropnd;
+		if ( nArgs>0 && !(ctx.stack[firstArg] instanceof STFloat) ) return Primitive.FAILED;
 		switch ( primitive ) {
 			case Float_ADD:
 				ropnd = ctx.stack[firstArg]; // get right operand (first arg)
@@ -58,35 +59,39 @@ public class STFloat extends STObject {
 				ropnd = ctx.stack[firstArg]; // get right operand (first arg)
 				ctx.sp--; // pop ropnd
 				ctx.sp--; // pop receiver
-				result = new STBoolean(vm, receiverEq.v == ((STFloat)ropnd).v);
+				result = vm.stBool(receiverEq.v == ((STFloat)ropnd).v);
 				break;
 			case Float_LT:
 				STFloat receiverLt = (STFloat)receiverObj;
 				ropnd = ctx.stack[firstArg]; // get right operand (first arg)
 				ctx.sp--; // pop ropnd
 				ctx.sp--; // pop receiver
-				result = new STBoolean(vm, receiverLt.v < ((STFloat)ropnd).v);
+				result = vm.stBool(receiverLt.v < ((STFloat)ropnd).v);
 				break;
 			case Float_LE:
 				STFloat receiverLe = (STFloat)receiverObj;
 				ropnd = ctx.stack[firstArg]; // get right operand (first arg)
 				ctx.sp--; // pop ropnd
 				ctx.sp--; // pop receiver
-				result = new STBoolean(vm, receiverLe.v <= ((STFloat)ropnd).v);
+				result = vm.stBool(receiverLe.v <= ((STFloat)ropnd).v);
 				break;
 			case Float_GT:
 				STFloat receiverGt = (STFloat)receiverObj;
 				ropnd = ctx.stack[firstArg]; // get right operand (first arg)
 				ctx.sp--; // pop ropnd
 				ctx.sp--; // pop receiver
-				result = new STBoolean(vm, receiverGt.v > ((STFloat)ropnd).v);
+				result = vm.stBool(receiverGt.v > ((STFloat)ropnd).v);
 				break;
 			case Float_GE:
 				STFloat receiverGe = (STFloat)receiverObj;
 				ropnd = ctx.stack[firstArg]; // get right operand (first arg)
 				ctx.sp--; // pop ropnd
 				ctx.sp--; // pop receiver
-				result = new STBoolean(vm, receiverGe.v >= ((STFloat)ropnd).v);
+				result = vm.stBool(receiverGe.v >= ((STFloat)ropnd).v);
+				break;
+			case Float_ASINTEGER:
+				ctx.sp--; // pop receiver
+				result = vm.newInteger((int)((STFloat)receiverObj).v);
 				break;
 		}
 		return result;
@@ -2,12 +2,20 @@ package smalltalk.vm.primitive;
 
 import smalltalk.vm.VirtualMachine;
 
-/** A backing object for smalltalk integers */
+import java.math.BigInteger;
+
+/** A backing object for smalltalk integers that fit in an int. Arithmetic
+ *  is done in long and the result checked, so a result that overflows is
+ *  promoted to an {@link STLargeInteger} instead of wrapping around. The
+ *  same primitives serve the large integer classes, which inherit them.
+ *  They fail on any other kind of argument, leaving mixed arithmetic to
+ *  the Smalltalk code in image.st.
+ */
 public class STInteger extends STObject {
 	public final int v;
 
 	public STInteger(VirtualMachine vm, int v) {
-		super(vm.lookupClass("Integer"));
+		super(vm.integerClass);
 		this.v = v;
 	}
 
@@ -16,107 +24,102 @@ public class STInteger extends STObject {
 		int firstArg = ctx.sp - nArgs + 1;
 		STObject receiverObj = ctx.stack[firstArg - 1];
 		STObject result = vm.nil();
-		int v;
-		STObject ropnd;
+		STObject ropnd = nArgs>0 ? ctx.stack[firstArg] : null; // right operand (first arg)
+		if ( ropnd!=null && !isInteger(ropnd) ) return Primitive.FAILED;
+		if ( (primitive==Primitive.Integer_DIV || primitive==Primitive.Integer_MOD) &&
+			 ropnd instanceof STInteger && ((STInteger)ropnd).v==0 )
+		{
+			return Primitive.FAILED; // dividing by zero is up to the Smalltalk code
+		}
+		ctx.sp -= nArgs + 1; // pop receiver and args
+		boolean small = receiverObj instanceof STInteger && ropnd instanceof STInteger;
 		switch ( primitive ) {
 			case Integer_ADD:
-				ropnd = ctx.stack[firstArg]; // get right operand (first arg)
-				ctx.sp--; // pop ropnd
-				ctx.sp--; // pop receiver
-				if(receiverObj instanceof STCharacter){
-					v = ((STCharacter) receiverObj).c + ((STInteger)ropnd).v;
-					result = new STCharacter(vm, v);
+				if ( small ) {
+					result = vm.newInteger((long)((STInteger)receiverObj).v + ((STInteger)ropnd).v);
 				}
-				else{
-					if(receiverObj instanceof STString){
-						int rec = Integer.parseInt(((STString) receiverObj).s);
-						v = rec + ((STInteger)ropnd).v;
-						STInteger st = new STInteger(vm, v);
-						result = new STString(vm, st.toString());
-					}
-					else{
-						STInteger receiver = (STInteger)receiverObj;
-						v = receiver.v + ((STInteger)ropnd).v;
-						result = new STInteger(vm, v);
-					}
+				else {
+					result = vm.newInteger(bigValue(receiverObj).add(bigValue(ropnd)));
 				}
 				break;
 			case Integer_SUB:
-				STInteger receiverSub = (STInteger)receiverObj;
-				ropnd = ctx.stack[firstArg]; // get right operand (first arg)
-				ctx.sp--; // pop ropnd
-				ctx.sp--; // pop receiver
-				v = receiverSub.v - ((STInteger)ropnd).v;
-				result = new STInteger(vm, v);
+				if ( small ) {
+					result = vm.newInteger((long)((STInteger)receiverObj).v - ((STInteger)ropnd).v);
+				}
+				else {
+					result = vm.newInteger(bigValue(receiverObj).subtract(bigValue(ropnd)));
+				}
 				break;
 			case Integer_MULT:
-				STInteger receiverMul = (STInteger)receiverObj;
-				ropnd = ctx.stack[firstArg]; // get right operand (first arg)
-				ctx.sp--; // pop ropnd
-				ctx.sp--; // pop receiver
-				v = receiverMul.v * ((STInteger)ropnd).v;
-				result = new STInteger(vm, v);
+				if ( small ) {
+					result = vm.newInteger((long)((STInteger)receiverObj).v * ((STInteger)ropnd).v);
+				}
+				else {
+					result = vm.newInteger(bigValue(receiverObj).multiply(bigValue(ropnd)));
+				}
 				break;
 			case Integer_DIV:
-				STInteger receiverDiv = (STInteger)receiverObj;
-				ropnd = ctx.stack[firstArg]; // get right operand (first arg)
-				ctx.sp--; // pop ropnd
-				ctx.sp--; // pop receiver
-				v = receiverDiv.v / ((STInteger)ropnd).v;
-				result = new STInteger(vm, v);
+				if ( small ) {
+					result = vm.newInteger((long)((STInteger)receiverObj).v / ((STInteger)ropnd).v);
+				}
+				else {
+					result = vm.newInteger(bigValue(receiverObj).divide(bigValue(ropnd)));
+				}
 				break;
 			case Integer_MOD:
-				STInteger receiverMod = (STInteger)receiverObj;
-				ropnd = ctx.stack[firstArg]; // get right operand (first arg)
-				ctx.sp--; // pop ropnd
-				ctx.sp--; // pop receiver
-				v = receiverMod.v % ((STInteger)ropnd).v;
-				result = new STInteger(vm, v);
+				if ( small ) {
+					result = vm.newInteger(((STInteger)receiverObj).v % ((STInteger)ropnd).v);
+				}
+				else {
+					result = vm.newInteger(bigValue(receiverObj).remainder(bigValue(ropnd)));
+				}
 				break;
 			case Integer_EQ:
-				STInteger receiverEq = (STInteger)receiverObj;
-				ropnd = ctx.stack[firstArg]; // get right operand (first arg)
-				ctx.sp--; // pop ropnd
-				ctx.sp--; // pop receiver
-				result = new STBoolean(vm, receiverEq.v == ((STInteger)ropnd).v);
+				result = vm.stBool(compare(receiverObj, ropnd) == 0);
 				break;
 			case Integer_LT:
-				STInteger receiverLt = (STInteger)receiverObj;
-				ropnd = ctx.stack[firstArg]; // get right operand (first arg)
-				ctx.sp--; // pop ropnd
-				ctx.sp--; // pop receiver
-				result = new STBoolean(vm, receiverLt.v < ((STInteger)ropnd).v);
+				result = vm.stBool(compare(receiverObj, ropnd) < 0);
 				break;
 			case Integer_LE:
-				STInteger receiverLe = (STInteger)receiverObj;
-				ropnd = ctx.stack[firstArg]; // get right operand (first arg)
-				ctx.sp--; // pop ropnd
-				ctx.sp--; // pop receiver
-				if(ropnd instanceof STInteger)
-					result = new STBoolean(vm, receiverLe.v <= ((STInteger)ropnd).v);
-				else if(ropnd instanceof STString){
-					STString firstArgs = (STString) ropnd;
-					result = new STBoolean(vm, receiverLe.v <= Integer.parseInt(firstArgs.s));
-				}
+				result = vm.stBool(compare(receiverObj, ropnd) <= 0);
 				break;
 			case Integer_GT:
-				STInteger receiverGt = (STInteger)receiverObj;
-				ropnd = ctx.stack[firstArg]; // get right operand (first arg)
-				ctx.sp--; // pop ropnd
-				ctx.sp--; // pop receiver
-				result = new STBoolean(vm, receiverGt.v > ((STInteger)ropnd).v);
+				result = vm.stBool(compare(receiverObj, ropnd) > 0);
 				break;
 			case Integer_GE:
-				STInteger receiverGe = (STInteger)receiverObj;
-				ropnd = ctx.stack[firstArg]; // get right operand (first arg)
-				ctx.sp--; // pop ropnd
-				ctx.sp--; // pop receiver
-				result = new STBoolean(vm, receiverGe.v >= ((STInteger)ropnd).v);
+				result = vm.stBool(compare(receiverObj, ropnd) >= 0);
+				break;
+			case Integer_ASFLOAT:
+				if ( receiverObj instanceof STInteger ) {
+					result = vm.newFloat((float)((STInteger)receiverObj).v);
+				}
+				else {
+					result = vm.newFloat(((STLargeInteger)receiverObj).v.floatValue());
+				}
 				break;
 		}
 		return result;
 	}
 
+	/** Is o an Integer of either representation? */
+	public static boolean isInteger(STObject o) {
+		return o instanceof STInteger || o instanceof STLargeInteger;
+	}
+
+	/** The value of an Integer, whichever representation backs it */
+	public static BigInteger bigValue(STObject o) {
+		if ( o instanceof STLargeInteger ) return ((STLargeInteger)o).v;
+		return BigInteger.valueOf(((STInteger)o).v);
+	}
+
+	/** Compare two Integers; cheap when both are small */
+	public static int compare(STObject a, STObject b) {
+		if ( a instanceof STInteger && b instanceof STInteger ) {
+			return Integer.compare(((STInteger)a).v, ((STInteger)b).v);
+		}
+		return bigValue(a).compareTo(bigValue(b));
+	}
+
 	@Override
 	public String toString() {
 		return String.valueOf(v);
@@ -0,0 +1,25 @@
+package smalltalk.vm.primitive;
+
+import smalltalk.vm.VirtualMachine;
+
+import java.math.BigInteger;
+
+/** Backing class for Smalltalk LargePositiveInteger and LargeNegativeInteger,
+ *  the integers that don't fit in an {@link STInteger}. Both classes inherit
+ *  their arithmetic from Integer, so {@link STInteger#perform} handles them.
+ *  Only {@link VirtualMachine#newInteger(BigInteger)} should create these so
+ *  that a value that fits in an int is always an STInteger.
+ */
+public class STLargeInteger extends STObject {
+	public final BigInteger v;
+
+	public STLargeInteger(VirtualMachine vm, BigInteger v) {
+		super(v.signum()<0 ? vm.largeNegativeIntegerClass : vm.largePositiveIntegerClass);
+		this.v = v;
+	}
+
+	@Override
+	public String toString() {
+		return v.toString();
+	}
+}
@@ -10,6 +10,7 @@ import smalltalk.vm.VirtualMachine;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.annotation.XmlElementDecl;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -26,25 +27,39 @@ public class STMetaClassObject extends STObject {
 	public final String name;
 	public final STMetaClassObject superClass;
 	public final List<String> fields;
+
+	/** The instance-side methods, understood by instances of this class */
 	public final Map<String,STCompiledBlock> methods;
 
-	public STMetaClassObject(VirtualMachine vm, STClass classSymbol) {
+	/** The class-side methods, understood by this class object itself */
+	public final Map<String,STCompiledBlock> classMethods;
+
+	/** The fields of a new instance with no fields or more than four, all
+	 *  nil; {@link #basicNew()} copies it. {@link #fields} already includes
+	 *  the inherited fields, so this is the full instance size. Built on
+	 *  first use because nil doesn't exist yet while classes are linked.
+	 */
+	protected STObject[] prototypeFields;
+
+	/** Create the meta-object for classSymbol. superClass must be the
+	 *  (shared) meta-object of its superclass, or null.
+	 */
+	public STMetaClassObject(VirtualMachine vm, STClass classSymbol, STMetaClassObject superClass) {
 		super(null);
 		this.vm = vm;
-		if(classSymbol.getSuperClassScope() != null)
-			this.superClass = new STMetaClassObject(vm, (STClass) classSymbol.getSuperClassScope());
-		else
-			this.superClass = null;
+		this.superClass = superClass;
 		this.name = classSymbol.getName();
 		fields = new ArrayList<>();
 		for (FieldSymbol f : classSymbol.getFields()) {				//getDefinedFields
 			fields.add(f.getName());
 		}
 		methods = new HashMap<>();
+		classMethods = new HashMap<>();
 		for (MethodSymbol m : classSymbol.getDefinedMethods()) {
 			STCompiledBlock m1 = ((STMethod)m).compiledBlock;
 			m1.enclosingClass = this;
-			methods.put(m.getName(), m1);
+			m1.decode();
+			(m1.isClassMethod ? classMethods : methods).put(m.getName(), m1);
 		}
 	}
 
@@ -61,25 +76,8 @@ public class STMetaClassObject extends STObject {
 		STObject result = vm.nil();
 		switch ( primitive ) {
 			case Object_Class_BASICNEW:
-				int count = 0;
 				ctx.sp--;
-				STMetaClassObject recv = (STMetaClassObject) receiver;
-				result = new STObject(recv);
-				if(recv.superClass != null){
-					if(recv.superClass.getNumberOfFields() != 0)
-						count = count + recv.superClass.getNumberOfFields();
-				}
-				if(recv.getNumberOfFields() != 0){
-					count = count + recv.getNumberOfFields();
-				}
-				if(count != 0){
-					result.fields = new STObject[count];
-					for(int i=0; i<count; i++){
-						result.fields[i] = vm.nil();
-					}
-				}
-				else
-					result.fields = new STObject[0];
+				result = ((STMetaClassObject) receiver).basicNew();
 				break;
 			case Object_Class_ERROR:
 				vm.error(ctx.stack[firstArg].asString().toString());
@@ -98,10 +96,82 @@ public class STMetaClassObject extends STObject {
 		return methods.get(name);
 	}
 
+	/** Find the instance method for selector in this class or the nearest
+	 *  superclass that defines it; null if no class up the chain understands it.
+	 */
+	public STCompiledBlock lookupMethod(String selector) {
+		return lookupMethod(selector, false);
+	}
+
+	/** Like {@link #lookupMethod(String)} but searches the class-side
+	 *  methods if classSide. Class methods are inherited too. A class is
+	 *  an object as well, so, as if its metaclass chain ended in Object,
+	 *  the class side finally understands the instance methods of the root
+	 *  class, like == and className. If the class or one of its superclasses
+	 *  overrides such a method for its instances, the send is the usual
+	 *  mistake of sending an instance message to a class and is not
+	 *  understood.
+	 */
+	public STCompiledBlock lookupMethod(String selector, boolean classSide) {
+		for (STMetaClassObject c = this; c!=null; c = c.superClass) {
+			STCompiledBlock m = (classSide ? c.classMethods : c.methods).get(selector);
+			if ( m!=null ) return m;
+		}
+		if ( !classSide ) return null;
+		STCompiledBlock m = lookupMethod(selector, false);
+		return m!=null && m.enclosingClass.superClass==null ? m : null;
+	}
+
+	/** Make the code of every method work in this class' VM; see
+	 *  {@link STCompiledBlock#bindTo}. Each VM has its own meta-object for
+	 *  the class, so the methods' enclosing class, where super sends
+	 *  start, is set back to this one.
+	 */
+	public void bindCode() {
+		for (STCompiledBlock m : methods.values()) {
+			m.enclosingClass = this;
+			m.bindTo(vm);
+		}
+		for (STCompiledBlock m : classMethods.values()) {
+			m.enclosingClass = this;
+			m.bindTo(vm);
+		}
+	}
+
+	/** Add or replace a method in this class. Any cached lookups are
+	 *  stale afterwards so the VM's caches are invalidated.
+	 */
+	public void defineMethod(String selector, STCompiledBlock m) {
+		m.enclosingClass = this;
+		m.decode();
+		m.bindTo(vm);
+		(m.isClassMethod ? classMethods : methods).put(selector, m);
+		vm.methodCache.invalidate();
+	}
+
 	public int getNumberOfFields() {
 		return fields.size();
 	}
 
+	/** Return a new instance of this class with all fields nil. Instances
+	 *  with up to four fields hold them inline.
+	 */
+	public STObject basicNew() {
+		switch ( fields.size() ) {
+			case 1 : return new STObject1(this, vm.nil());
+			case 2 : return new STObject2(this, vm.nil());
+			case 3 : return new STObject3(this, vm.nil());
+			case 4 : return new STObject4(this, vm.nil());
+		}
+		if ( prototypeFields==null ) {
+			prototypeFields = new STObject[fields.size()];
+			Arrays.fill(prototypeFields, vm.nil());
+		}
+		STObject o = new STObject(this);
+		o.fields = prototypeFields.length>0 ? prototypeFields.clone() : prototypeFields;
+		return o;
+	}
+
 	public String toTestString() {
 		ST template = new ST(
 			"name: <name>\n" +
@@ -113,10 +183,19 @@ public class STMetaClassObject extends STObject {
 		template.add("name", name);
 		template.add("superClass", superClass);
 		template.add("fields", fields);
-		template.add("methods", map(methods.values(), STCompiledBlock::toTestString));
+		Map<String,STCompiledBlock> all = new HashMap<>();
+		all.putAll(classMethods);
+		all.putAll(methods);
+		template.add("methods", map(all.values(), STCompiledBlock::toTestString));
 		return template.render();
 	}
 
+	/** A class prints as its name */
+	@Override
+	public STString asString() {
+		return vm.newString(name);
+	}
+
 	@Override
 	public String toString() {
 		return "class "+name;
@@ -28,6 +28,12 @@ public class STObject {
 		return fields;
 	}
 
+	/** Field i counting from the top of the superclass chain. Layouts with
+	 *  inline slots override these two.
+	 */
+	public STObject getField(int i) { return fields[i]; }
+	public void setField(int i, STObject v) { fields[i] = v; }
+
 	/** What kind of object am I? Analogous to Java's Object.getClass() */
 	public STMetaClassObject getSTClass() {
 		return metaclass;
@@ -65,7 +71,9 @@ public class STObject {
 				STObject x = receiver;
 				STObject y = ctx.stack[firstArg];
 				ctx.sp -= 2;
-				result = vm.newBoolean(x.toString().equals(y.toString()));
+				if ( x==y ) result = vm.stBool(true);
+				else if ( isSingleton(x) || isSingleton(y) ) result = vm.stBool(false);
+				else result = vm.newBoolean(x.toString().equals(y.toString()));
 				break;
 			case Object_HASH:
 				ctx.sp--;
@@ -73,7 +81,7 @@ public class STObject {
 				break;
 			case Object_Class_BASICNEW:
 				ctx.sp--;
-				result = new STObject((STMetaClassObject) receiver);
+				result = ((STMetaClassObject) receiver).basicNew();
 				break;
 			case TranscriptStream_SHOW:
 				ctx.sp--;
@@ -83,6 +91,11 @@ public class STObject {
 		return result;
 	}
 
+	/** nil, true and false are unique, so == on them is identity */
+	private static boolean isSingleton(STObject o) {
+		return o instanceof STNil || o instanceof STBoolean;
+	}
+
 	@Override
 	public String toString() {
 		if ( metaclass==null ) return "<no classdef>";
@@ -0,0 +1,35 @@
+package smalltalk.vm.primitive;
+
+/** An instance with exactly one field, held inline rather than in a
+ *  separate {@link #fields} array. {@link STMetaClassObject#basicNew()}
+ *  picks the layout from the instance size.
+ */
+public class STObject1 extends STObject {
+	public STObject f0;
+
+	public STObject1(STMetaClassObject metaclass, STObject nil) {
+		super(metaclass);
+		f0 = nil;
+	}
+
+	@Override
+	public STObject getField(int i) {
+		switch ( i ) {
+			case 0 : return f0;
+			default : throw new ArrayIndexOutOfBoundsException(i);
+		}
+	}
+
+	@Override
+	public void setField(int i, STObject v) {
+		switch ( i ) {
+			case 0 : f0 = v; break;
+			default : throw new ArrayIndexOutOfBoundsException(i);
+		}
+	}
+
+	@Override
+	public STObject[] getFields() {
+		return new STObject[] {f0};
+	}
+}
@@ -0,0 +1,34 @@
+package smalltalk.vm.primitive;
+
+/** An instance with exactly two fields held inline; see {@link STObject1} */
+public class STObject2 extends STObject {
+	public STObject f0, f1;
+
+	public STObject2(STMetaClassObject metaclass, STObject nil) {
+		super(metaclass);
+		f0 = f1 = nil;
+	}
+
+	@Override
+	public STObject getField(int i) {
+		switch ( i ) {
+			case 0 : return f0;
+			case 1 : return f1;
+			default : throw new ArrayIndexOutOfBoundsException(i);
+		}
+	}
+
+	@Override
+	public void setField(int i, STObject v) {
+		switch ( i ) {
+			case 0 : f0 = v; break;
+			case 1 : f1 = v; break;
+			default : throw new ArrayIndexOutOfBoundsException(i);
+		}
+	}
+
+	@Override
+	public STObject[] getFields() {
+		return new STObject[] {f0, f1};
+	}
+}
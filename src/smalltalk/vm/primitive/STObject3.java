@@ -0,0 +1,36 @@
+package smalltalk.vm.primitive;
+
+/** An instance with exactly three fields held inline; see {@link STObject1} */
+public class STObject3 extends STObject {
+	public STObject f0, f1, f2;
+
+	public STObject3(STMetaClassObject metaclass, STObject nil) {
+		super(metaclass);
+		f0 = f1 = f2 = nil;
+	}
+
+	@Override
+	public STObject getField(int i) {
+		switch ( i ) {
+			case 0 : return f0;
+			case 1 : return f1;
+			case 2 : return f2;
+			default : throw new ArrayIndexOutOfBoundsException(i);
+		}
+	}
+
+	@Override
+	public void setField(int i, STObject v) {
+		switch ( i ) {
+			case 0 : f0 = v; break;
+			case 1 : f1 = v; break;
+			case 2 : f2 = v; break;
+			default : throw new ArrayIndexOutOfBoundsException(i);
+		}
+	}
+
+	@Override
+	public STObject[] getFields() {
+		return new STObject[] {f0, f1, f2};
+	}
+}
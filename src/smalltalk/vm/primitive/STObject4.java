@@ -0,0 +1,38 @@
+package smalltalk.vm.primitive;
+
+/** An instance with exactly four fields held inline; see {@link STObject1} */
+public class STObject4 extends STObject {
+	public STObject f0, f1, f2, f3;
+
+	public STObject4(STMetaClassObject metaclass, STObject nil) {
+		super(metaclass);
+		f0 = f1 = f2 = f3 = nil;
+	}
+
+	@Override
+	public STObject getField(int i) {
+		switch ( i ) {
+			case 0 : return f0;
+			case 1 : return f1;
+			case 2 : return f2;
+			case 3 : return f3;
+			default : throw new ArrayIndexOutOfBoundsException(i);
+		}
+	}
+
+	@Override
+	public void setField(int i, STObject v) {
+		switch ( i ) {
+			case 0 : f0 = v; break;
+			case 1 : f1 = v; break;
+			case 2 : f2 = v; break;
+			case 3 : f3 = v; break;
+			default : throw new ArrayIndexOutOfBoundsException(i);
+		}
+	}
+
+	@Override
+	public STObject[] getFields() {
+		return new STObject[] {f0, f1, f2, f3};
+	}
+}
@@ -10,7 +10,7 @@ public class STString extends STObject {
 	}
 
 	public STString(VirtualMachine vm, String s) {
-		super(vm.lookupClass("String"));
+		super(vm.stringClass);
 		this.s = s;
 	}
 
@@ -19,7 +19,8 @@ public class STString extends STObject {
 		vm.assertNumOperands(nArgs+1);
 		int firstArg = ctx.sp - nArgs + 1;
 		STObject receiverObj = ctx.stack[firstArg - 1];
-		STString receiver = (STString)receiverObj;
+		// class methods like String_Class_NEW are sent to the String metaclass
+		STString receiver = receiverObj instanceof STString ? (STString)receiverObj : null;
 		STObject result = vm.nil();
 		String s;
 		STObject ropnd;
@@ -45,7 +46,6 @@ public class STString extends STObject {
 					result = vm.newBoolean(false);
 				break;
 			case String_Class_NEW:
-				STObject recv = receiver;
 				STObject arg = ctx.stack[firstArg];
 				ctx.sp -= 2;
 				if(arg instanceof STString)
@@ -84,6 +84,15 @@ public class BaseTest {
 		execAndCheck(input, expecting, genDbg);
 	}
 
+	/** Compile image.st plus input and return a VM ready to execMain(), so
+	 *  tests can look at VM state after running.
+	 */
+	public VirtualMachine load(String input) {
+		STSymbolTable symtab = Run.compileCore(true);
+		Run.compileString(symtab, input, true);
+		return new VirtualMachine(symtab);
+	}
+
 	public String compile(String input) {
 		return compile(input, false);
 	}
@@ -0,0 +1,72 @@
+package smalltalk.test;
+
+import org.junit.Test;
+import smalltalk.Run;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.STArray;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class TestAllocations extends BaseTest {
+	@Test public void testMonomorphicSendsAllocateNothing() {
+		String input =
+			"class T [\n" +
+			"  class f: x [ |y| y := x. ^y ]\n" +
+			"  class g: x [ ^self f: x ]\n" +
+			"]\n" +
+			"|s| s := 0.\n" +
+			"1 to: 200 do: [:i | s := [:x | T g: x] value: i].\n" +
+			"^s";
+		assumeTrue(VirtualMachine.canCountAllocations());
+		VirtualMachine vm = load(input);
+		vm.countAllocations = true;
+		vm.execMain(); // warm up caches and the free list of contexts
+		Arrays.fill(vm.allocatedBytes, 0);
+		assertEquals("200", vm.execMain().toString());
+		for (int op = 0; op<vm.allocatedBytes.length; op++) {
+			assertEquals(Bytecode.instructions[op]!=null ? "allocated by "+op : "", 0, vm.allocatedBytes[op]);
+		}
+	}
+
+	@Test public void testLiteralPushesAllocateNothing() {
+		assumeTrue(VirtualMachine.canCountAllocations());
+		VirtualMachine vm = load("|a| 1 to: 100 do: [:i | a := {'abc'. 2.5. $x}]. ^a");
+		vm.countAllocations = true;
+		assertEquals("{abc. 2.5. $x}", vm.execMain().toString());
+		assertEquals(0, vm.allocatedBytes[Bytecode.PUSH_LITERAL]);
+		assertEquals(0, vm.allocatedBytes[Bytecode.PUSH_FLOAT]);
+		assertEquals(0, vm.allocatedBytes[Bytecode.PUSH_CHAR]);
+	}
+
+	@Test public void testLiteralsBelongToEachVM() {
+		STSymbolTable symtab = Run.compileCore(true);
+		Run.compileString(symtab, "^{'abc'. 2.5. $x}", true);
+		VirtualMachine vm1 = new VirtualMachine(symtab);
+		VirtualMachine vm2 = new VirtualMachine(symtab);
+		for (VirtualMachine vm : new VirtualMachine[] {vm1, vm2, vm1, vm2}) {
+			STArray a = (STArray)vm.execMain();
+			assertSame(vm.stringClass, a.elements[0].getSTClass());
+			assertSame(vm.floatClass, a.elements[1].getSTClass());
+			assertSame(vm.characterClass, a.elements[2].getSTClass());
+		}
+	}
+
+	@Test public void testAllocationsAreCounted() {
+		assumeTrue(VirtualMachine.canCountAllocations());
+		VirtualMachine vm = load("|a| a := 0. 1 to: 10 do: [:i | a := {i. a}]. ^a");
+		vm.countAllocations = true;
+		vm.execMain();
+		assertTrue(vm.allocatedBytes[Bytecode.SEND]>0); // first send fills the caches
+		Arrays.fill(vm.allocatedBytes, 0);
+		vm.execMain();
+		assertTrue(vm.allocatedBytes[Bytecode.PUSH_ARRAY]>0);
+		assertEquals(0, vm.allocatedBytes[Bytecode.SEND]);
+	}
+}
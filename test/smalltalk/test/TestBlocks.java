@@ -590,4 +590,27 @@ public class TestBlocks extends BaseTest {
 		String expecting = "99";
 		execAndCheck(input, expecting);
 	}
+
+	@Test public void testReturnGoesToItsOwnActivation() {
+		String input =
+			"class T [\n" +
+			"  f: n blk: b [\n" +
+			"    n = 0 ifTrue: [^b value].\n" +
+			"    ^(self f: n - 1 blk: [^n]) + 1000\n" + // ^n returns from the activation that made it
+			"  ]\n" +
+			"]\n" +
+			"^T new f: 3 blk: nil";
+		execAndCheck(input, "2001");
+	}
+
+	@Test public void testReturnUnwindsDeepStack() {
+		String input =
+			"class T [\n" +
+			"  find [ ^(self down: 5000 then: [^42]) + 1 ]\n" +
+			"  down: n then: blk [ n = 0 ifTrue: [^blk value]. ^(self down: n - 1 then: blk) + 1 ]\n" +
+			"]\n" +
+			"|t| t := T new.\n" +
+			"^{t find. t find. t down: 3 then: [0]}";
+		execAndCheck(input, "{42. 42. 3}");
+	}
 }
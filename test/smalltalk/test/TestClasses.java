@@ -1,6 +1,16 @@
 package smalltalk.test;
 
 import org.junit.Test;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.exceptions.ClassMessageSentToInstance;
+import smalltalk.vm.exceptions.MessageNotUnderstood;
+import smalltalk.vm.primitive.STMetaClassObject;
+import smalltalk.vm.primitive.STObject2;
+import smalltalk.vm.primitive.STObject4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class TestClasses extends BaseTest {
 	@Test public void testClassAndNew() {
@@ -107,4 +117,81 @@ public class TestClasses extends BaseTest {
 		String expecting = "198";
 		execAndCheck(input, expecting);
 	}
+
+	@Test public void testNewInstancesGetOwnNilFields() {
+		String input =
+			"class A [ |x| getX [^x] setX: v [x := v] ]\n" +
+			"class B : A [ |y| getY [^y] setY: v [y := v] ]\n" +
+			"|b c| b := B new. c := B new. b setX: 1. b setY: 2.\n" +
+			"^{b getX. b getY. c getX. c getY}";
+		VirtualMachine vm = load(input);
+		assertTrue(vm.lookupClass("B").basicNew() instanceof STObject2);
+		assertEquals("{1. 2. nil. nil}", vm.execMain().toString());
+	}
+
+	@Test public void testInlineAndArrayFieldLayouts() {
+		String input =
+			"class F [ |a b c d| set [a := 1. b := 2. c := 3. d := 4] sum [^a + b + c + d] ]\n" +
+			"class G : F [ |e| set [super set. e := 5] sum [^super sum + e] ]\n" +
+			"^{F new set sum. G new set sum}";
+		VirtualMachine vm = load(input);
+		assertTrue(vm.lookupClass("F").basicNew() instanceof STObject4);
+		assertEquals(5, vm.lookupClass("G").basicNew().fields.length);
+		assertEquals("{10. 15}", vm.execMain().toString());
+	}
+
+	@Test public void testOneMetaObjectPerClass() {
+		String input =
+			"class A [ foo [^'A>>foo'] ]\n" +
+			"class B : A [ ]\n" +
+			"class C : A [ ]\n" +
+			"^{B new foo. C new foo}";
+		VirtualMachine vm = load(input);
+		STMetaClassObject a = vm.lookupClass("A");
+		assertSame(a, vm.lookupClass("B").superClass);
+		assertSame(a, vm.lookupClass("C").superClass);
+		assertSame(a, a.resolveMethod("foo").enclosingClass);
+		assertSame(vm.lookupClass("Number"), vm.lookupClass("Integer").superClass);
+		assertSame(vm.lookupClass("TranscriptStream"), vm.systemDict.lookup("Transcript").getSTClass());
+		assertEquals("{A>>foo. A>>foo}", vm.execMain().toString());
+	}
+
+	@Test public void testClassAndInstanceSidesAreSeparate() {
+		String input =
+			"class A [ class make [ ^self new ] tag [ ^'A' ] ]\n" +
+			"class B : A [ tag [ ^'B' ] ]\n" +
+			"^{B make tag. A make tag}";
+		VirtualMachine vm = load(input);
+		assertEquals("{B. A}", vm.execMain().toString());
+		STMetaClassObject a = vm.lookupClass("A");
+		assertTrue(a.classMethods.containsKey("make") && !a.methods.containsKey("make"));
+		assertTrue(a.methods.containsKey("tag") && !a.classMethods.containsKey("tag"));
+		String result = "";
+		try {
+			execAndCheck("^$a new: 3", "");
+		}
+		catch (ClassMessageSentToInstance e) {
+			result = e.getMessage();
+		}
+		assertEquals("new: is a class method sent to instance of Character", result);
+	}
+
+	@Test public void testClassUnderstandsObjectProtocol() {
+		String input =
+			"class T [ class make [ ^self new ] ]\n" +
+			"^{Integer == Integer. Integer == Float. Integer className. T asString. T make className}";
+		execAndCheck(input, "{true. false. Integer. T. T}");
+	}
+
+	@Test public void testClassSideDoesNotInheritOtherInstanceMethods() {
+		String input = "^Integer + 1";
+		String result = "";
+		try {
+			execAndCheck(input, "");
+		}
+		catch (MessageNotUnderstood mnu) {
+			result = mnu.getMessage();
+		}
+		assertEquals("+ is an instance method sent to class object Integer", result);
+	}
 }
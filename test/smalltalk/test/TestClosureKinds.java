@@ -0,0 +1,86 @@
+package smalltalk.test;
+
+import org.junit.Test;
+import smalltalk.Run;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.STArray;
+import smalltalk.vm.primitive.STCompiledBlock;
+import smalltalk.vm.primitive.STMetaClassObject;
+import smalltalk.vm.primitive.STObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class TestClosureKinds extends BaseTest {
+	@Test public void testBlocksAreClassified() {
+		String input =
+			"class T [\n" +
+			"  |_a|\n" +
+			"  clean [ ^[:x | x + 1] ]\n" +
+			"  field [ ^[_a] ]\n" +
+			"  me [ ^[self] ]\n" +
+			"  outer: y [ ^[y] ]\n" +
+			"  escape [ ^[^1] ]\n" +
+			"  nested: y [ ^[[y]] ]\n" +
+			"  inner [ ^[:x | [:z | x + z]] ]\n" +
+			"]\n" +
+			"^nil";
+		STMetaClassObject t = load(input).lookupClass("T");
+		assertEquals(STCompiledBlock.CLEAN_BLOCK, blockOf(t, "clean").closure);
+		assertEquals(STCompiledBlock.SELF_CLOSURE, blockOf(t, "field").closure);
+		assertEquals(STCompiledBlock.SELF_CLOSURE, blockOf(t, "me").closure);
+		assertEquals(STCompiledBlock.FULL_CLOSURE, blockOf(t, "outer:").closure);
+		assertEquals(STCompiledBlock.FULL_CLOSURE, blockOf(t, "escape").closure);
+		assertEquals(STCompiledBlock.FULL_CLOSURE, blockOf(t, "nested:").closure);
+		assertEquals(STCompiledBlock.CLEAN_BLOCK, blockOf(t, "inner").closure);
+	}
+
+	@Test public void testCleanBlockMadeOnce() {
+		String input =
+			"class T [\n" +
+			"  |_a|\n" +
+			"  clean [ ^[:x | x * 2] ]\n" +
+			"  field [ ^[_a] ]\n" +
+			"  a: x [ _a := x ]\n" +
+			"]\n" +
+			"|t u| t := T new. u := T new. t a: 1. u a: 2.\n" +
+			"^{t clean. u clean. t field. t field. (t clean value: 21). t field value. u field value}";
+		VirtualMachine vm = load(input);
+		STArray result = (STArray)vm.execMain();
+		assertSame(result.elements[0], result.elements[1]);
+		assertNotSame(result.elements[2], result.elements[3]);
+		assertEquals("42", result.elements[4].toString());
+		assertEquals("1", result.elements[5].toString());
+		assertEquals("2", result.elements[6].toString());
+	}
+
+	@Test public void testCleanBlockBelongsToEachVM() {
+		STSymbolTable symtab = Run.compileCore(true);
+		Run.compileString(symtab, "^[:x | x * 2]", true);
+		VirtualMachine vm1 = new VirtualMachine(symtab);
+		VirtualMachine vm2 = new VirtualMachine(symtab);
+		STObject blk1 = vm1.execMain();
+		assertSame(blk1, vm1.execMain());
+		STObject blk2 = vm2.execMain();
+		assertNotSame(blk1, blk2);
+		assertSame(vm2.blockDescriptorClass, blk2.getSTClass());
+		assertSame(blk2, vm2.execMain());
+		assertSame(vm1.blockDescriptorClass, vm1.execMain().getSTClass());
+	}
+
+	@Test public void testInnerBlockSeesOuterBlockArgs() {
+		String input =
+			"class T [\n" +
+			"  adder [ ^[:x | [:z | x + z]] ]\n" +
+			"]\n" +
+			"|a b| a := T new adder value: 10. b := T new adder value: 20.\n" +
+			"^{a value: 1. b value: 2. a value: 3}";
+		execAndCheck(input, "{11. 22. 13}");
+	}
+
+	protected STCompiledBlock blockOf(STMetaClassObject cls, String selector) {
+		return cls.resolveMethod(selector).blocks[0];
+	}
+}
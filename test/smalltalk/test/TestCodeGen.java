@@ -5,12 +5,21 @@ import org.junit.Test;
 import smalltalk.Run;
 import smalltalk.compiler.Compiler;
 import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.InlineCache;
+import smalltalk.vm.SelectorTable;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.STCharacter;
+import smalltalk.vm.primitive.STCompiledBlock;
 import smalltalk.vm.primitive.STMetaClassObject;
+import smalltalk.vm.primitive.STString;
 
 import java.io.IOException;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class TestCodeGen extends BaseTest {
 	@Test public void testEmpty() {
@@ -47,6 +56,7 @@ public class TestCodeGen extends BaseTest {
 			"    qualifiedName: T>>f\n" +
 			"    nargs: 0\n" +
 			"    nlocals: 0\n" +
+			"    maxStack: 1\n" +
 			"    literals: \n" +
 			"    0000:  self             \n" +
 			"    0001:  return           \n";
@@ -66,6 +76,7 @@ public class TestCodeGen extends BaseTest {
 			"    qualifiedName: MainClass>>main\n" +
 			"    nargs: 0\n" +
 			"    nlocals: 2\n" +
+			"    maxStack: 1\n" +
 			"    literals: \n" +
 			"    0000:  push_local     0, 1\n" +
 			"    0005:  store_local    0, 0\n" +
@@ -88,6 +99,7 @@ public class TestCodeGen extends BaseTest {
 			"    qualifiedName: MainClass>>main\n" +
 			"    nargs: 0\n" +
 			"    nlocals: 0\n" +
+			"    maxStack: 2\n" +
 			"    literals: 'Transcript','hello','show:'\n" +
 			"    0000:  push_global    'Transcript'\n" +
 			"    0003:  push_literal   'hello'\n" +
@@ -113,6 +125,7 @@ public class TestCodeGen extends BaseTest {
 			"    qualifiedName: String>>asArray\n" +
 			"    nargs: 0\n" +
 			"    nlocals: 0\n" +
+			"    maxStack: 0\n" +
 			"    literals: \n";
 		String result = compile(input);
 		assertEquals(expecting, result);
@@ -132,6 +145,7 @@ public class TestCodeGen extends BaseTest {
 			"    qualifiedName: String>>,\n" +
 			"    nargs: 1\n" +
 			"    nlocals: 0\n" +
+			"    maxStack: 0\n" +
 			"    literals: \n";
 		String result = compile(input);
 		assertEquals(expecting, result);
@@ -152,6 +166,7 @@ public class TestCodeGen extends BaseTest {
 			"    qualifiedName: T>>foo\n" +
 			"    nargs: 0\n" +
 			"    nlocals: 1\n" +
+			"    maxStack: 1\n" +
 			"    literals: \n" +
 			"    0000:  push_local     0, 0\n" +
 			"    0005:  store_field    0\n" +
@@ -177,6 +192,7 @@ public class TestCodeGen extends BaseTest {
 			"    qualifiedName: T>>foo\n" +
 			"    nargs: 0\n" +
 			"    nlocals: 1\n" +
+			"    maxStack: 1\n" +
 			"    literals: \n" +
 			"    0000:  push_local     0, 0\n" +
 			"    0005:  store_field    0\n" +
@@ -204,25 +220,39 @@ public class TestCodeGen extends BaseTest {
 			"    qualifiedName: MainClass>>main\n" +
 			"    nargs: 0\n" +
 			"    nlocals: 0\n" +
+			"    maxStack: 2\n" +
 			"    literals: 'ifTrue:'\n" +
 			"    0000:  false            \n" +
-			"    0001:  block          0\n" +
-			"    0004:  send           1, 'ifTrue:'\n" +
-			"    0009:  pop              \n" +
-			"    0010:  true             \n" +
-			"    0011:  block          1\n" +
-			"    0014:  send           1, 'ifTrue:'\n" +
-			"    0019:  pop              \n" +
-			"    0020:  push_int       1\n" +
-			"    0025:  return           \n" +
-			"    0026:  pop              \n" +
-			"    0027:  self             \n" +
-			"    0028:  return           \n" +
+			"    0001:  jump_if_false  36, 'ifTrue:', 23\n" +
+			"    0012:  push_int       99\n" +
+			"    0017:  return           \n" +
+			"    0018:  jump           37\n" +
+			"    0023:  block          0\n" +
+			"    0026:  send           1, 'ifTrue:'\n" +
+			"    0031:  jump           37\n" +
+			"    0036:  nil              \n" +
+			"    0037:  pop              \n" +
+			"    0038:  true             \n" +
+			"    0039:  jump_if_false  74, 'ifTrue:', 61\n" +
+			"    0050:  push_int       100\n" +
+			"    0055:  return           \n" +
+			"    0056:  jump           75\n" +
+			"    0061:  block          1\n" +
+			"    0064:  send           1, 'ifTrue:'\n" +
+			"    0069:  jump           75\n" +
+			"    0074:  nil              \n" +
+			"    0075:  pop              \n" +
+			"    0076:  push_int       1\n" +
+			"    0081:  return           \n" +
+			"    0082:  pop              \n" +
+			"    0083:  self             \n" +
+			"    0084:  return           \n" +
 			"    blocks:\n" +
 			"        name: main-block0\n" +
 			"        qualifiedName: main>>main-block0\n" +
 			"        nargs: 0\n" +
 			"        nlocals: 0\n" +
+			"        maxStack: 1\n" +
 			"        literals: \n" +
 			"        0000:  push_int       99\n" +
 			"        0005:  return           \n" +
@@ -232,6 +262,7 @@ public class TestCodeGen extends BaseTest {
 			"        qualifiedName: main>>main-block1\n" +
 			"        nargs: 0\n" +
 			"        nlocals: 0\n" +
+			"        maxStack: 1\n" +
 			"        literals: \n" +
 			"        0000:  push_int       100\n" +
 			"        0005:  return           \n" +
@@ -255,6 +286,7 @@ public class TestCodeGen extends BaseTest {
 			"    qualifiedName: T>>isEmpty\n" +
 			"    nargs: 0\n" +
 			"    nlocals: 0\n" +
+			"    maxStack: 2\n" +
 			"    literals: '=='\n" +
 			"    0000:  push_field     0\n" +
 			"    0003:  nil              \n" +
@@ -289,6 +321,7 @@ public class TestCodeGen extends BaseTest {
 			"    qualifiedName: U>>value\n"+
 			"    nargs: 0\n"+
 			"    nlocals: 0\n"+
+			"    maxStack: 2\n"+
 			"    literals: '+'\n"+
 			"    0000:  push_field     0\n"+
 			"    0003:  push_field     1\n"+
@@ -316,6 +349,7 @@ public class TestCodeGen extends BaseTest {
 			"    qualifiedName: T>>bar\n" +
 			"    nargs: 0\n" +
 			"    nlocals: 0\n" +
+			"    maxStack: 1\n" +
 			"    literals: \n" +
 			"    0000:  push_int       100\n" +
 			"    0005:  return           \n" +
@@ -327,6 +361,7 @@ public class TestCodeGen extends BaseTest {
 			"    qualifiedName: T>>foo\n" +
 			"    nargs: 0\n" +
 			"    nlocals: 0\n" +
+			"    maxStack: 1\n" +
 			"    literals: \n" +
 			"    0000:  push_int       99\n" +
 			"    0005:  return           \n" +
@@ -351,6 +386,7 @@ public class TestCodeGen extends BaseTest {
 			"    qualifiedName: T>>foo\n" +
 			"    nargs: 0\n" +
 			"    nlocals: 1\n" +
+			"    maxStack: 2\n" +
 			"    literals: '+','*'\n" +
 			"    0000:  push_int       1\n" +
 			"    0005:  push_int       5\n" +
@@ -377,6 +413,7 @@ public class TestCodeGen extends BaseTest {
 			"    qualifiedName: MainClass>>main\n" +
 			"    nargs: 0\n" +
 			"    nlocals: 2\n" +
+			"    maxStack: 1\n" +
 			"    literals: \n" +
 			"    0000:  block          0\n" +
 			"    0003:  store_local    0, 0\n" +
@@ -388,6 +425,7 @@ public class TestCodeGen extends BaseTest {
 			"        qualifiedName: main>>main-block0\n" +
 			"        nargs: 0\n" +
 			"        nlocals: 0\n" +
+			"        maxStack: 1\n" +
 			"        literals: \n" +
 			"        0000:  push_int       99\n" +
 			"        0005:  return           \n" +
@@ -408,29 +446,17 @@ public class TestCodeGen extends BaseTest {
 			"    qualifiedName: MainClass>>main\n" +
 			"    nargs: 0\n" +
 			"    nlocals: 0\n" +
+			"    maxStack: 1\n" +
 			"    literals: 'whileTrue:'\n" +
-			"    0000:  block          0\n" +
-			"    0003:  block          1\n" +
-			"    0006:  send           1, 'whileTrue:'\n" +
-			"    0011:  pop              \n" +
-			"    0012:  self             \n" +
-			"    0013:  return           \n" +
-			"    blocks:\n" +
-			"        name: main-block0\n" +
-			"        qualifiedName: main>>main-block0\n" +
-			"        nargs: 0\n" +
-			"        nlocals: 0\n" +
-			"        literals: \n" +
-			"        0000:  true             \n" +
-			"        0001:  block_return     \n" +
-			"\n" +
-			"        name: main-block1\n" +
-			"        qualifiedName: main>>main-block1\n" +
-			"        nargs: 0\n" +
-			"        nlocals: 0\n" +
-			"        literals: \n" +
-			"        0000:  nil              \n" +
-			"        0001:  block_return     \n";
+			"    0000:  true             \n" +
+			"    0001:  jump_if_false  19, 'whileTrue:', 12\n" +
+			"    0012:  nil              \n" +
+			"    0013:  pop              \n" +
+			"    0014:  jump           0\n" +
+			"    0019:  nil              \n" +
+			"    0020:  pop              \n" +
+			"    0021:  self             \n" +
+			"    0022:  return           \n";
 		String result = compile(input);
 		assertEquals(expecting, result);
 	}
@@ -446,25 +472,31 @@ public class TestCodeGen extends BaseTest {
 			"    name: main\n" +
 			"    qualifiedName: MainClass>>main\n" +
 			"    nargs: 0\n" +
-			"    nlocals: 0\n" +
-			"    literals: 'to:do:'\n" +
+			"    nlocals: 2\n" +
+			"    maxStack: 3\n" +
+			"    literals: 'Transcript','show:','<=','+','to:do:'\n" +
 			"    0000:  push_int       1\n" +
-			"    0005:  push_int       5\n" +
-			"    0010:  block          0\n" +
-			"    0013:  send           2, 'to:do:'\n" +
-			"    0018:  pop              \n" +
-			"    0019:  self             \n" +
-			"    0020:  return           \n" +
-			"    blocks:\n" +
-			"        name: main-block0\n" +
-			"        qualifiedName: main>>main-block0\n" +
-			"        nargs: 1\n" +
-			"        nlocals: 0\n" +
-			"        literals: 'Transcript','show:'\n" +
-			"        0000:  push_global    'Transcript'\n" +
-			"        0003:  push_local     0, 0\n" +
-			"        0008:  send           1, 'show:'\n" +
-			"        0013:  block_return     \n";
+			"    0005:  store_local    0, 0\n" +
+			"    0010:  push_int       5\n" +
+			"    0015:  store_local    0, 1\n" +
+			"    0020:  pop              \n" +
+			"    0021:  push_local     0, 0\n" +
+			"    0026:  push_local     0, 1\n" +
+			"    0031:  send           1, '<='\n" +
+			"    0036:  jump_if_false  87, 'to:do:', 47\n" +
+			"    0047:  push_global    'Transcript'\n" +
+			"    0050:  push_local     0, 0\n" +
+			"    0055:  send           1, 'show:'\n" +
+			"    0060:  pop              \n" +
+			"    0061:  push_local     0, 0\n" +
+			"    0066:  push_int       1\n" +
+			"    0071:  send           1, '+'\n" +
+			"    0076:  store_local    0, 0\n" +
+			"    0081:  pop              \n" +
+			"    0082:  jump           21\n" +
+			"    0087:  pop              \n" +
+			"    0088:  self             \n" +
+			"    0089:  return           \n";
 		String result = compile(input);
 		assertEquals(expecting, result);
 	}
@@ -512,4 +544,77 @@ public class TestCodeGen extends BaseTest {
 		assertEquals(expecting, result);
 	}
 
+	@Test public void testDecodedCodeMatchesBytecode() {
+		String input =
+			"class T [\n" +
+			"   |x|\n" +
+			"   foo: y [ x := y + 34. ^[:z | x , 'hi'] value: $a ]\n" +
+			"]\n";
+		VirtualMachine vm = load(input);
+		STCompiledBlock foo = vm.lookupClass("T").resolveMethod("foo:");
+		STCompiledBlock blk = foo.blocks[0];
+		for (STCompiledBlock b : new STCompiledBlock[] {foo, blk}) {
+			assertEquals(b.bytecode.length, b.code.length);
+			int ip = 0;
+			while ( ip<b.bytecode.length ) {
+				int op = b.bytecode[ip];
+				int decoded = b.code[ip];
+				if ( Bytecode.isSuperinstruction(decoded) ) assertEquals(op, Bytecode.components[decoded][0]);
+				else assertEquals(op, decoded);
+				if ( op==Bytecode.PUSH_INT ) assertEquals(34, b.code[ip+1]);
+				if ( op==Bytecode.PUSH_LITERAL ) assertEquals("hi", ((STString)b.constants[b.code[ip+1]]).s);
+				if ( op==Bytecode.PUSH_CHAR ) assertTrue(b.constants[b.code[ip+1]] instanceof STCharacter);
+				if ( op==Bytecode.BLOCK ) assertSame(blk, b.constants[b.code[ip+1]]);
+				if ( op==Bytecode.SEND ) {
+					assertEquals(b.literals[b.code[ip+4]], SelectorTable.name(b.code[ip+2]));
+					assertTrue(b.constants[b.code[ip+3]] instanceof InlineCache);
+				}
+				ip += Bytecode.sizeOfInstruction(op);
+			}
+		}
+	}
+
+	@Test public void testSuperinstructions() {
+		String input =
+			"class T [\n" +
+			"   |x|\n" +
+			"   get [^x]\n" +
+			"   set: y [x := y]\n" +
+			"   incr: y [|z| z := y. ^self set: (self get + 1) + z]\n" +
+			"]\n" +
+			"|t| t := T new. t set: 1. t incr: 3. ^t get";
+		STSymbolTable symtab = Run.compileCore(false);
+		Run.compileString(symtab, input, false);
+		VirtualMachine vm = new VirtualMachine(symtab);
+		STMetaClassObject t = vm.lookupClass("T");
+		assertEquals(Bytecode.PUSH_FIELD_RETURN, t.resolveMethod("get").code[0]);
+		assertEquals(Bytecode.STORE_FIELD_POP, t.resolveMethod("set:").code[5]);
+		STCompiledBlock incr = t.resolveMethod("incr:");
+		String expecting =
+			"0005:  store_local_pop [0005:  store_local    0, 1; 0010:  pop]";
+		assertEquals(expecting, Bytecode.disassembleDecodedInstruction(incr, 5));
+		assertEquals(Bytecode.SELF_SEND, incr.code[12]);
+		assertEquals(Bytecode.PUSH_INT_SEND, incr.code[18]);
+		assertEquals(Bytecode.PUSH_LOCAL_SEND, incr.code[28]);
+		assertEquals(Bytecode.POP_SELF_RETURN, incr.code[44]);
+		assertEquals("5", vm.execMain().toString());
+	}
+
+	@Test public void testMaxStack() {
+		String input =
+			"class T [\n" +
+			"   get [^0]\n" +
+			"   deep [^{1. 2 + (3 * (4 - 5)). 6}]\n" +
+			"   cond: b [^b ifTrue: [1 + (2 + 3)] ifFalse: [4]]\n" +
+			"]\n" +
+			"^{T new deep. T new cond: true}";
+		STSymbolTable symtab = Run.compileCore(false);
+		Run.compileString(symtab, input, false);
+		VirtualMachine vm = new VirtualMachine(symtab);
+		STMetaClassObject t = vm.lookupClass("T");
+		assertEquals(1, t.resolveMethod("get").maxStack);
+		assertEquals(5, t.resolveMethod("deep").maxStack);
+		assertEquals(3, t.resolveMethod("cond:").maxStack); // the branches don't add up
+		assertEquals("{{1. -1. 6}. 6}", vm.execMain().toString());
+	}
 }
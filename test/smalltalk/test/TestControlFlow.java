@@ -0,0 +1,166 @@
+package smalltalk.test;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.junit.Test;
+import smalltalk.Run;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.exceptions.MessageNotUnderstood;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestControlFlow extends BaseTest {
+	@Test public void testConditionals() {
+		String input =
+			"^{true and: [false]. false or: [true]. 3 > 2 ifTrue: [1] ifFalse: [2].\n" +
+			"  false ifTrue: [1]. true ifFalse: [1]. false ifFalse: [7]}";
+		execAndCheck(input, "{false. true. 1. nil. nil. 7}");
+	}
+
+	@Test public void testToDoSum() {
+		String input =
+			"|s| s := 0. 1 to: 10 do: [:i | s := s + i]. ^s";
+		execAndCheck(input, "55");
+	}
+
+	@Test public void testToDoAnswersReceiver() {
+		String input =
+			"^3 to: 1 do: [:i | i]";
+		execAndCheck(input, "3");
+	}
+
+	@Test public void testNestedToDo() {
+		String input =
+			"|s| s := 0. 1 to: 3 do: [:i | 1 to: i do: [:j | s := s + j]]. ^s";
+		execAndCheck(input, "10");
+	}
+
+	@Test public void testWhileTrueWithBlockLocal() {
+		String input =
+			"|n| n := 0. [n < 5] whileTrue: [|t| t := n. n := t + 1]. ^n";
+		execAndCheck(input, "5");
+	}
+
+	@Test public void testInlinedBlockLocalsStartNil() {
+		String input =
+			"|s| s := ''. 1 to: 2 do: [:i | |t| s := s, t asString. t := i]. ^s";
+		execAndCheck(input, "nilnil");
+	}
+
+	@Test public void testInlinedInsideRealBlock() {
+		String input =
+			"|s| s := 0.\n" +
+			"{1. 2. 3} do: [:x | |y| y := x. y > 1 ifTrue: [|z| z := y * 10. s := s + z]].\n" +
+			"^s";
+		execAndCheck(input, "50");
+	}
+
+	@Test public void testRealBlockInsideInlined() {
+		String input =
+			"|s| s := 0. 1 to: 3 do: [:i | s := [:x | s + x + i] value: 10]. ^s";
+		execAndCheck(input, "36");
+	}
+
+	@Test public void testReturnFromInlinedBlock() {
+		String input =
+			"class T [\n" +
+			"  find: n [ 1 to: 10 do: [:i | i * i >= n ifTrue: [^i]]. ^nil ]\n" +
+			"]\n" +
+			"^{T new find: 50. T new find: 1000}";
+		execAndCheck(input, "{8. nil}");
+	}
+
+	@Test public void testLongLoopRunsInConstantSpace() {
+		String input =
+			"|s| s := 0. 1 to: 1000000 do: [:i | s := s + 1]. [s > 0] whileTrue: [s := s - 1]. ^s";
+		execAndCheck(input, "0");
+	}
+
+	@Test public void testNonBooleanReceiverGetsMessage() {
+		String input =
+			"class T [ ifTrue: a ifFalse: b [ ^b value ] ]\n" +
+			"^T new ifTrue: [1] ifFalse: [2]";
+		execAndCheck(input, "2");
+	}
+
+	@Test public void testNonBooleanReceiverBlocksShareVariables() {
+		String input =
+			"class T [ ifTrue: a ifFalse: b [ ^a value ] ]\n" +
+			"|s| s := 0. 1 to: 3 do: [:i | T new ifTrue: [s := s + i] ifFalse: [s := 100]]. ^s";
+		execAndCheck(input, "6");
+	}
+
+	@Test public void testNonBooleanReceiverAndOr() {
+		String input =
+			"class T [ and: b [ ^b value ] or: b [ ^42 ] ]\n" +
+			"^{T new and: [7]. T new or: [8]}";
+		execAndCheck(input, "{7. 42}");
+	}
+
+	@Test public void testReturnFromNonBooleanReceiverBlock() {
+		String input =
+			"class T [ ifTrue: a [ a value. ^nil ] ]\n" +
+			"class U [ f [ T new ifTrue: [^5]. ^6 ] ]\n" +
+			"^U new f";
+		execAndCheck(input, "5");
+	}
+
+	@Test public void testNonBooleanReceiver() {
+		String input =
+			"^3 ifTrue: [1]";
+		String result = "";
+		try {
+			execAndCheck(input, "");
+		}
+		catch (MessageNotUnderstood e) {
+			result = e.toString();
+		}
+		assertTrue(result.startsWith("MessageNotUnderstood: ifTrue: is not understood by instance of Integer\n"));
+	}
+
+	@Test public void testNonLiteralBlocksAreSent() {
+		String input =
+			"|b s| s := 0. b := [:i | s := s + i]. 1 to: 4 do: b. ^s";
+		execAndCheck(input, "10");
+	}
+
+	@Test public void testLongLoopWithNonLiteralBlocks() {
+		String input =
+			"|b c d s| s := 0. b := [:i | s := s + 1]. 1 to: 100000 do: b.\n" +
+			"c := [s > 0]. d := [s := s - 1]. c whileTrue: d. ^s";
+		execAndCheck(input, "0");
+	}
+
+	@Test public void testConditionalInLoop() {
+		String input =
+			"|s| s := 0. 1 to: 3 do: [:i | i > 1 ifTrue: [s := s + i] ifFalse: [s := s - 1]]. ^s";
+		assertTrue(compile(input).contains("jump_if_false"));
+		execAndCheck(input, "4");
+	}
+
+	@Test public void testLoopsWithoutInlining() throws IOException {
+		String input =
+			"|s| s := 0. 1 to: 3 do: [:i | s := s + i].\n" +
+			"1 to: 100000 do: [:i | s := s + 1]. [s > 6] whileTrue: [s := s - 1].\n" +
+			"^{s. 3 > 2 ifTrue: [1] ifFalse: [2]. true and: [false]}";
+		assertEquals("{6. 1. false}", execWithoutInlining(input));
+	}
+
+	/** Compile the image and input with control flow sent as messages, not
+	 *  open-coded, and run main.
+	 */
+	public static String execWithoutInlining(String input) throws IOException {
+		Compiler c = new Compiler();
+		c.inlineControlFlow = false;
+		STSymbolTable symtab = c.compile(new ANTLRInputStream(Run.getImageURL("smalltalk/image.st").openStream()));
+		c = new Compiler(symtab);
+		c.inlineControlFlow = false;
+		c.compile(new ANTLRInputStream(input));
+		assertEquals("[]", c.errors.toString());
+		return new VirtualMachine(symtab).execMain().toString();
+	}
+}
@@ -1,10 +1,15 @@
 package smalltalk.test;
 
 import org.junit.Test;
+import smalltalk.vm.VirtualMachine;
 import smalltalk.vm.exceptions.ClassMessageSentToInstance;
 import smalltalk.vm.exceptions.MessageNotUnderstood;
+import smalltalk.vm.exceptions.PrimitiveFailed;
+import smalltalk.vm.exceptions.VMException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 public class TestCore extends BaseTest {
 	@Test public void testEmpty() {
@@ -1079,4 +1084,101 @@ public class TestCore extends BaseTest {
 		}
 		assertEquals(expecting, result);
 	}
+
+	@Test public void testOverridePrimitiveInSubclass() {
+		String input =
+			"class T [\n" +
+			"    className [^'blort']\n"+
+			"]\n" +
+			"^T new className, ' ', Object new className";
+		String expecting = "blort Object";
+		execAndCheck(input, expecting);
+	}
+
+	@Test public void testCharacterArithmeticViaImage() {
+		String input =
+			"^($a + 2) asInteger";
+		String expecting = "99";
+		execAndCheck(input, expecting);
+	}
+
+	@Test public void testNilAndBooleansAreIdentical() {
+		String input =
+			"|x| ^{x == nil. (3 > 2) == true. (1 = 2) == false. nil == 'nil'. true == 'true'. true ~~ false}";
+		String expecting = "{true. true. true. false. false. true}";
+		execAndCheck(input, expecting);
+	}
+
+	@Test public void testSmallIntegersAreShared() {
+		VirtualMachine vm = load("^{65535 + 1. -1024 - 1. 3 + 4. 65535 * 2}");
+		assertSame(vm.newInteger(7), vm.newInteger(7));
+		assertSame(vm.newInteger(-1024), vm.newInteger(-1024));
+		assertNotSame(vm.newInteger(65536), vm.newInteger(65536));
+		assertEquals("{65536. -1025. 7. 131070}", vm.execMain().toString());
+	}
+
+	@Test public void testIntegerOverflowPromotesToLargeInteger() {
+		String input =
+			"|big f| big := 2147483647 + 1. f := 1. 1 to: 20 do: [:i | f := f * i].\n" +
+			"^{big. big className. big - 1. (big - 1) className. 0 - big - big. (0 - big - big) className.\n" +
+			"  f. f / (1000000 * 1000000). f mod: 1000000007. f > big. big = (big * 1). big hash = big}";
+		String expecting =
+			"{2147483648. LargePositiveInteger. 2147483647. Integer. -4294967296. LargeNegativeInteger. " +
+			"2432902008176640000. 2432902. 146326063. true. true. true}";
+		execAndCheck(input, expecting);
+	}
+
+	@Test public void testMixedArithmeticFallsBackToSmalltalk() {
+		String input =
+			"^{3 + 4.5. 2.5 * 2. 7 / 2.0. 1 - 0.5. 3 < 3.5. 4.5 >= 5. 3 = 3.0. 3.0 = 3. 3 = nil. 1.5 = nil}";
+		String expecting = "{7.5. 5. 3.5. 0.5. true. false. true. true. false. false}";
+		execAndCheck(input, expecting);
+	}
+
+	@Test public void testPrimitiveFailsWithoutFallback() {
+		String input =
+			"^{1. 2} at: 'x'";
+		String result = "";
+		try {
+			execAndCheck(input, "");
+		}
+		catch (PrimitiveFailed e) {
+			result = e.getMessage();
+		}
+		assertEquals("Array_AT failed for at: sent to instance of Array", result);
+	}
+
+	@Test public void testDivideByZeroFallsBackToSmalltalk() {
+		execAndCheck("^{7 / 0 > 1000000. 7 mod: 2}", "{true. 1}"); // float division
+		String result = "";
+		try {
+			execAndCheck("^7 mod: 0", "");
+		}
+		catch (VMException e) {
+			result = e.getMessage();
+		}
+		assertEquals("mod: needs a nonzero Integer, not 0", result);
+	}
+
+	@Test public void testCharacterNewFailsOnNonInteger() {
+		String input =
+			"^Character new: 'x'";
+		String result = "";
+		try {
+			execAndCheck(input, "");
+		}
+		catch (PrimitiveFailed e) {
+			result = e.getMessage();
+		}
+		assertEquals("Character_Class_NEW failed for new: sent to class object Character", result);
+	}
+
+	@Test public void testPrimitiveFallbackInUserClass() {
+		String input =
+			"class T [\n" +
+			"  + y <primitive:#Integer_ADD> [ |s| s := y asString. [:x | s := s, x] value: '!'. ^s ]\n" +
+			"]\n" +
+			"^{T new + 2.5. T new + 'x'}";
+		execAndCheck(input, "{2.5!. x!}");
+	}
 }
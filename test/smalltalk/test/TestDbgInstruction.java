@@ -17,6 +17,7 @@ public class TestDbgInstruction extends BaseTest {
 			"    qualifiedName: MainClass>>main\n" +
 			"    nargs: 0\n" +
 			"    nlocals: 0\n" +
+			"    maxStack: 2\n" +
 			"    literals: '<unknown>','x','=='\n" +
 			"    0000:  dbg '<unknown>', 1:2\n" +
 			"    0007:  push_global    'x'\n" +
@@ -47,20 +48,28 @@ public class TestDbgInstruction extends BaseTest {
 			"    qualifiedName: MainClass>>main\n" +
 			"    nargs: 0\n" +
 			"    nlocals: 0\n" +
+			"    maxStack: 2\n" +
 			"    literals: '<unknown>','ifTrue:'\n" +
 			"    0000:  block          0\n" +
-			"    0003:  block          1\n" +
-			"    0006:  dbg '<unknown>', 1:9\n" +
-			"    0013:  send           1, 'ifTrue:'\n" +
-			"    0018:  dbg '<unknown>', 1:20\n" +
-			"    0025:  pop              \n" +
-			"    0026:  self             \n" +
-			"    0027:  return           \n" +
+			"    0003:  dbg '<unknown>', 1:9\n" +
+			"    0010:  jump_if_false  47, 'ifTrue:', 27\n" +
+			"    0021:  nil              \n" +
+			"    0022:  jump           48\n" +
+			"    0027:  block          1\n" +
+			"    0030:  dbg '<unknown>', 1:9\n" +
+			"    0037:  send           1, 'ifTrue:'\n" +
+			"    0042:  jump           48\n" +
+			"    0047:  nil              \n" +
+			"    0048:  dbg '<unknown>', 1:20\n" +
+			"    0055:  pop              \n" +
+			"    0056:  self             \n" +
+			"    0057:  return           \n" +
 			"    blocks:\n" +
 			"        name: main-block0\n" +
 			"        qualifiedName: main>>main-block0\n" +
 			"        nargs: 0\n" +
 			"        nlocals: 0\n" +
+			"        maxStack: 2\n" +
 			"        literals: '<unknown>','p','~~'\n" +
 			"        0000:  dbg '<unknown>', 1:2\n" +
 			"        0007:  push_global    'p'\n" +
@@ -73,6 +82,7 @@ public class TestDbgInstruction extends BaseTest {
 			"        qualifiedName: main>>main-block1\n" +
 			"        nargs: 0\n" +
 			"        nlocals: 0\n" +
+			"        maxStack: 1\n" +
 			"        literals: '<unknown>'\n" +
 			"        0000:  dbg '<unknown>', 1:17\n" +
 			"        0007:  nil              \n" +
@@ -95,6 +105,7 @@ public class TestDbgInstruction extends BaseTest {
 			"    qualifiedName: MainClass>>main\n" +
 			"    nargs: 0\n" +
 			"    nlocals: 0\n" +
+			"    maxStack: 2\n" +
 			"    literals: '<unknown>','x','=='\n" +
 			"    0000:  dbg '<unknown>', 1:1\n" +
 			"    0007:  push_global    'x'\n" +
@@ -121,6 +132,7 @@ public class TestDbgInstruction extends BaseTest {
 			"    qualifiedName: MainClass>>main\n" +
 			"    nargs: 0\n" +
 			"    nlocals: 0\n" +
+			"    maxStack: 1\n" +
 			"    literals: '<unknown>','asString'\n" +
 			"    0000:  dbg '<unknown>', 1:2\n" +
 			"    0007:  push_int       3\n" +
@@ -146,6 +158,7 @@ public class TestDbgInstruction extends BaseTest {
 			"    qualifiedName: MainClass>>main\n" +
 			"    nargs: 0\n" +
 			"    nlocals: 0\n" +
+			"    maxStack: 3\n" +
 			"    literals: '<unknown>','to:do:'\n" +
 			"    0000:  push_int       1\n" +
 			"    0005:  push_int       10\n" +
@@ -161,6 +174,7 @@ public class TestDbgInstruction extends BaseTest {
 			"        qualifiedName: main>>main-block0\n" +
 			"        nargs: 0\n" +
 			"        nlocals: 0\n" +
+			"        maxStack: 2\n" +
 			"        literals: '<unknown>','+'\n" +
 			"        0000:  dbg '<unknown>', 1:15\n" +
 			"        0007:  push_int       5\n" +
@@ -187,6 +201,7 @@ public class TestDbgInstruction extends BaseTest {
 			"    qualifiedName: MainClass>>main\n" +
 			"    nargs: 0\n" +
 			"    nlocals: 0\n" +
+			"    maxStack: 3\n" +
 			"    literals: '<unknown>','abc','size','to:do:'\n" +
 			"    0000:  push_int       1\n" +
 			"    0005:  dbg '<unknown>', 1:12\n" +
@@ -204,6 +219,7 @@ public class TestDbgInstruction extends BaseTest {
 			"        qualifiedName: main>>main-block0\n" +
 			"        nargs: 0\n" +
 			"        nlocals: 0\n" +
+			"        maxStack: 1\n" +
 			"        literals: '<unknown>'\n" +
 			"        0000:  dbg '<unknown>', 1:21\n" +
 			"        0007:  nil              \n" +
@@ -234,51 +250,37 @@ public class TestDbgInstruction extends BaseTest {
 			"    qualifiedName: T>>do:\n" +
 			"    nargs: 1\n" +
 			"    nlocals: 1\n" +
-			"    literals: '<unknown>','head','whileTrue:'\n" +
+			"    maxStack: 2\n" +
+			"    literals: '<unknown>','head','~~','value','value:','nextLink','whileTrue:'\n" +
 			"    0000:  dbg '<unknown>', 4:2\n" +
 			"    0007:  push_global    'head'\n" +
 			"    0010:  store_local    0, 1\n" +
 			"    0015:  pop              \n" +
-			"    0016:  block          0\n" +
-			"    0019:  block          1\n" +
-			"    0022:  dbg '<unknown>', 5:11\n" +
-			"    0029:  send           1, 'whileTrue:'\n" +
-			"    0034:  dbg '<unknown>', 6:1\n" +
-			"    0041:  pop              \n" +
-			"    0042:  self             \n" +
-			"    0043:  return           \n" +
-			"    blocks:\n" +
-			"        name: do:-block0\n" +
-			"        qualifiedName: do:>>do:-block0\n" +
-			"        nargs: 0\n" +
-			"        nlocals: 0\n" +
-			"        literals: '<unknown>','~~'\n" +
-			"        0000:  dbg '<unknown>', 5:4\n" +
-			"        0007:  push_local     1, 1\n" +
-			"        0012:  nil              \n" +
-			"        0013:  send           1, '~~'\n" +
-			"        0018:  dbg '<unknown>', 5:9\n" +
-			"        0025:  block_return     \n" +
-			"\n" +
-			"        name: do:-block1\n" +
-			"        qualifiedName: do:>>do:-block1\n" +
-			"        nargs: 0\n" +
-			"        nlocals: 0\n" +
-			"        literals: '<unknown>','value','value:','nextLink'\n" +
-			"        0000:  push_local     1, 0\n" +
-			"        0005:  dbg '<unknown>', 5:38\n" +
-			"        0012:  push_local     1, 1\n" +
-			"        0017:  send           0, 'value'\n" +
-			"        0022:  dbg '<unknown>', 5:28\n" +
-			"        0029:  send           1, 'value:'\n" +
-			"        0034:  pop              \n" +
-			"        0035:  dbg '<unknown>', 5:46\n" +
-			"        0042:  dbg '<unknown>', 5:53\n" +
-			"        0049:  push_local     1, 1\n" +
-			"        0054:  send           0, 'nextLink'\n" +
-			"        0059:  store_local    1, 1\n" +
-			"        0064:  dbg '<unknown>', 5:62\n" +
-			"        0071:  block_return     \n";
+			"    0016:  dbg '<unknown>', 5:4\n" +
+			"    0023:  push_local     0, 1\n" +
+			"    0028:  nil              \n" +
+			"    0029:  send           1, '~~'\n" +
+			"    0034:  dbg '<unknown>', 5:11\n" +
+			"    0041:  jump_if_false  122, 'whileTrue:', 52\n" +
+			"    0052:  push_local     0, 0\n" +
+			"    0057:  dbg '<unknown>', 5:38\n" +
+			"    0064:  push_local     0, 1\n" +
+			"    0069:  send           0, 'value'\n" +
+			"    0074:  dbg '<unknown>', 5:28\n" +
+			"    0081:  send           1, 'value:'\n" +
+			"    0086:  pop              \n" +
+			"    0087:  dbg '<unknown>', 5:46\n" +
+			"    0094:  dbg '<unknown>', 5:53\n" +
+			"    0101:  push_local     0, 1\n" +
+			"    0106:  send           0, 'nextLink'\n" +
+			"    0111:  store_local    0, 1\n" +
+			"    0116:  pop              \n" +
+			"    0117:  jump           16\n" +
+			"    0122:  nil              \n" +
+			"    0123:  dbg '<unknown>', 6:1\n" +
+			"    0130:  pop              \n" +
+			"    0131:  self             \n" +
+			"    0132:  return           \n";
 		boolean genDbg = true;
 		String result = compile(input, genDbg);
 		assertEquals(expecting, result);
@@ -0,0 +1,103 @@
+package smalltalk.test;
+
+import org.junit.Test;
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.exceptions.MismatchedBlockArg;
+import smalltalk.vm.primitive.STCompiledBlock;
+import smalltalk.vm.primitive.STMetaClassObject;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestFrameStack extends BaseTest {
+	@Test public void testDeepRecursionGrowsStack() {
+		String input =
+			"class T [\n" +
+			"  sum: n [ n = 0 ifTrue: [^0]. ^n + (self sum: n - 1) ]\n" +
+			"]\n" +
+			"^T new sum: 5000";
+		execAndCheck(input, "12502500");
+	}
+
+	@Test public void testTailRecursionStaysInInitialStack() {
+		String input =
+			"class T [\n" +
+			"  count: n [ n = 0 ifTrue: [^0]. ^self count: n - 1 ]\n" +
+			"]\n" +
+			"^T new count: 100000";
+		VirtualMachine vm = load(input);
+		assertEquals("0", vm.execMain().toString());
+		assertEquals(VirtualMachine.INITIAL_STACK_SIZE, vm.stack.length);
+	}
+
+	@Test public void testCapturedLocalsOutliveFrame() {
+		String input =
+			"class T [\n" +
+			"  adder: x [ |z| z := x * 10. ^[:y | x + y + z] ]\n" +
+			"]\n" +
+			"|a b| a := T new adder: 3. b := T new adder: 5.\n" +
+			"^{a value: 4. b value: 1. a value: 0}";
+		execAndCheck(input, "{37. 56. 33}");
+	}
+
+	@Test public void testCapturedVariablesLiveInTempVectors() {
+		String input =
+			"class T [\n" +
+			"  pair: x [ |n m| n := x. m := 0. ^{[n := n + 1]. [:y | [x + y + n + m]]} ]\n" +
+			"  mixed: x [ |t u| u := x. t := u. ^[t] ]\n" +
+			"]\n" +
+			"^nil";
+		STMetaClassObject t = load(input).lookupClass("T");
+		STCompiledBlock pair = t.resolveMethod("pair:");
+		assertArrayEquals(new int[] {0, 1, 2}, pair.capturedLocals);
+		assertEquals(0, count(pair, Bytecode.PUSH_LOCAL));
+		assertEquals(2, count(pair, Bytecode.STORE_TEMP));
+		assertArrayEquals(new int[] {0}, pair.blocks[1].capturedLocals); // y
+		assertEquals(0, count(pair.blocks[2], Bytecode.PUSH_LOCAL));
+		assertEquals(4, count(pair.blocks[2], Bytecode.PUSH_TEMP));
+		STCompiledBlock mixed = t.resolveMethod("mixed:");
+		assertArrayEquals(new int[] {1}, mixed.capturedLocals);
+		assertEquals(2, count(mixed, Bytecode.PUSH_LOCAL)); // x and u stay in the frame
+	}
+
+	@Test public void testCapturedVariablesShared() {
+		String input =
+			"class T [\n" +
+			"  pair: x [ |n| n := x. ^{[n := n + 1]. [:y | [x + y + n]]} ]\n" +
+			"]\n" +
+			"|p| p := T new pair: 10. (p at: 1) value. (p at: 1) value.\n" +
+			"^{((p at: 2) value: 100) value. (p at: 1) value. ((p at: 2) value: 0) value}";
+		execAndCheck(input, "{122. 13. 23}");
+	}
+
+	@Test public void testArgumentsPassedInPlace() {
+		String input =
+			"class T [\n" +
+			"  a: x b: y c: z [ |t| ^{x. y. z. t} ]\n" +
+			"]\n" +
+			"^{T new a: 1 b: 2 c: 3. [:p :q | {q. p}] value: 4 value: 5}";
+		execAndCheck(input, "{{1. 2. 3. nil}. {5. 4}}");
+	}
+
+	/** How many instructions of code run as opcode op? */
+	protected int count(STCompiledBlock blk, short op) {
+		int n = 0;
+		for (int ip = 0; ip<blk.bytecode.length; ip += Bytecode.sizeOfInstruction(blk.bytecode[ip])) {
+			if ( blk.code[ip]==op ) n++;
+		}
+		return n;
+	}
+
+	@Test public void testWrongNumberOfBlockArgs() {
+		String input = "^[:x | x] value";
+		String result = "";
+		try {
+			execAndCheck(input, "");
+		}
+		catch (MismatchedBlockArg e) {
+			result = e.getMessage();
+		}
+		assertEquals("wrong number of arguments for main>>main-block0: 0", result);
+	}
+}
@@ -0,0 +1,63 @@
+package smalltalk.test;
+
+import org.junit.Test;
+import smalltalk.Run;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.STCompiledBlock;
+import smalltalk.vm.primitive.STMetaClassObject;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestQuickMethods extends BaseTest {
+	@Test public void testAccessorsAreQuick() {
+		String input =
+			"class T [\n" +
+			"  |_a _b|\n" +
+			"  a [^_a] b: x [_b := x] c: x [_b := x. ^self]\n" +
+			"  yes [^true] no [^false] none [^nil] seven [^7] me [^self] empty [ ]\n" +
+			"  other: x [_b := _a] twice [^_a + _a] arg: x [^x]\n" +
+			"]\n" +
+			"^nil";
+		STMetaClassObject t = load(input).lookupClass("T");
+		assertEquals(STCompiledBlock.QUICK_FIELD, t.resolveMethod("a").quick);
+		assertEquals(STCompiledBlock.QUICK_SET_FIELD, t.resolveMethod("b:").quick);
+		assertEquals(STCompiledBlock.QUICK_SET_FIELD, t.resolveMethod("c:").quick);
+		assertEquals(STCompiledBlock.QUICK_TRUE, t.resolveMethod("yes").quick);
+		assertEquals(STCompiledBlock.QUICK_FALSE, t.resolveMethod("no").quick);
+		assertEquals(STCompiledBlock.QUICK_NIL, t.resolveMethod("none").quick);
+		assertEquals(STCompiledBlock.QUICK_INT, t.resolveMethod("seven").quick);
+		assertEquals(7, t.resolveMethod("seven").quickOperand);
+		assertEquals(STCompiledBlock.QUICK_SELF, t.resolveMethod("me").quick);
+		assertEquals(STCompiledBlock.QUICK_SELF, t.resolveMethod("empty").quick);
+		assertEquals(STCompiledBlock.NOT_QUICK, t.resolveMethod("other:").quick);
+		assertEquals(STCompiledBlock.NOT_QUICK, t.resolveMethod("twice").quick);
+		assertEquals(STCompiledBlock.NOT_QUICK, t.resolveMethod("arg:").quick);
+	}
+
+	@Test public void testQuickMethodResults() {
+		String input =
+			"class T [\n" +
+			"  |_a _b|\n" +
+			"  a [^_a] a: x [_a := x] b [^_b] b: x [_b := x. ^self]\n" +
+			"  yes [^true] seven [^7] me [^self] empty [ ]\n" +
+			"]\n" +
+			"|t| t := T new. t a: 1. (t b: 2) a: 3.\n" +
+			"^{t a. t b. t yes. t seven. t me == t. t empty == t. (t a: 4) == t. t initialize == t}";
+		execAndCheck(input, "{3. 2. true. 7. true. true. true. true}");
+	}
+
+	@Test public void testLinkedListAccessorsAreQuick() {
+		STSymbolTable symtab = Run.compileCore(true);
+		Run.compile(symtab, "smalltalk/test/linkedlist.st", true);
+		STMetaClassObject link = new VirtualMachine(symtab).lookupClass("Link");
+		assertEquals(STCompiledBlock.QUICK_FIELD, link.resolveMethod("nextLink").quick);
+		assertEquals(STCompiledBlock.QUICK_SET_FIELD, link.resolveMethod("nextLink:").quick);
+		assertEquals(STCompiledBlock.QUICK_SET_FIELD, link.resolveMethod("value:").quick);
+		assertEquals(STCompiledBlock.QUICK_FIELD, link.resolveMethod("value").quick);
+		String input =
+			"|l| l := LinkedList new. l add: 1. l add: 2.\n" +
+			"^{l first value. l first nextLink value. l last nextLink}";
+		execAndCheckWithLinkedList(input, "{1. 2. nil}");
+	}
+}
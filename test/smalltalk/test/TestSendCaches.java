@@ -0,0 +1,187 @@
+package smalltalk.test;
+
+import org.junit.Test;
+import smalltalk.Run;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.InlineCache;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.exceptions.MessageNotUnderstood;
+import smalltalk.vm.primitive.Primitive;
+import smalltalk.vm.primitive.STCompiledBlock;
+import smalltalk.vm.primitive.STMetaClassObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestSendCaches extends BaseTest {
+	@Test public void testLoopSendsHitInlineCache() {
+		String input =
+			"|s| s := 0. 1 to: 100 do: [:i | s := s + i]. ^s";
+		VirtualMachine vm = load(input);
+		assertEquals("5050", vm.execMain().toString());
+		assertTrue(vm.sendCacheHits > 10 * vm.sendCacheMisses);
+	}
+
+	@Test public void testPolymorphicSiteResults() {
+		String input =
+			"|s| s := ''. {1. $a. 'b'. nil. 2. $c} do: [:x | s := s, x asString]. ^s";
+		execAndCheck(input, "1abnil2c");
+	}
+
+	@Test public void testCacheStates() {
+		VirtualMachine vm = load("");
+		InlineCache cache = new InlineCache();
+		assertEquals(InlineCache.State.EMPTY, cache.state);
+		String[] classes = {"Integer", "Float", "String", "Character", "Boolean"};
+		for (int i=0; i<classes.length; i++) {
+			STMetaClassObject cls = vm.lookupClass(classes[i]);
+			assertEquals(-1, cache.find(cls, false));
+			cache.add(cls, false, cls.lookupMethod("asString"));
+			if ( i==0 ) assertEquals(InlineCache.State.MONOMORPHIC, cache.state);
+			else if ( i<InlineCache.MAX_ENTRIES ) assertEquals(InlineCache.State.POLYMORPHIC, cache.state);
+		}
+		assertEquals(InlineCache.State.MEGAMORPHIC, cache.state);
+		assertEquals(-1, cache.find(vm.lookupClass("Integer"), false));
+	}
+
+	@Test public void testClassSideIsSeparateEntry() {
+		VirtualMachine vm = load("");
+		InlineCache cache = new InlineCache();
+		STMetaClassObject string = vm.lookupClass("String");
+		cache.add(string, false, string.lookupMethod(","));
+		assertEquals(-1, cache.find(string, true));
+		assertEquals(0, cache.find(string, false));
+		assertEquals(Primitive.String_CAT, cache.getPrimitive(0));
+		assertEquals(1, cache.hits);
+		assertEquals(1, cache.misses);
+	}
+
+	@Test public void testPrimitivesBoundToCompiledMethods() {
+		String input =
+			"class T [ is: x <primitive:#Object_SAME> className [ ^'not a primitive' ] ]\n" +
+			"|t| t := T new. ^{t is: t. t is: nil. t className. 3 className}";
+		VirtualMachine vm = load(input);
+		assertEquals("{true. false. not a primitive. Integer}", vm.execMain().toString());
+		assertEquals(Primitive.Integer_ADD, vm.lookupClass("Integer").lookupMethod("+").primitive);
+		assertEquals(Primitive.Object_SAME, vm.lookupClass("T").lookupMethod("is:").primitive);
+		assertEquals(null, vm.lookupClass("T").lookupMethod("className").primitive);
+	}
+
+	@Test public void testInheritedThroughDeepHierarchy() {
+		String input =
+			"class A [ foo [^'A>>foo'] ]\n" +
+			"class B : A [ ]\n" +
+			"class C : B [ ]\n" +
+			"class D : C [ ]\n" +
+			"^D new foo";
+		execAndCheck(input, "A>>foo");
+	}
+
+	@Test public void testMessageNotUnderstood() {
+		String input = "^3 foo";
+		String result = "";
+		try {
+			execAndCheck(input, "");
+		}
+		catch (MessageNotUnderstood mnu) {
+			result = mnu.toString();
+		}
+		assertTrue(result.startsWith("MessageNotUnderstood: foo is not understood by instance of Integer\n"));
+	}
+
+	@Test public void testRedefiningMethodInvalidatesCaches() {
+		String input =
+			"class T [ foo [^1] bar [^2] ]\n" +
+			"^T new foo";
+		VirtualMachine vm = load(input);
+		assertEquals("1", vm.execMain().toString());
+		STMetaClassObject t = vm.lookupClass("T");
+		int epoch = vm.methodCache.epoch;
+		t.defineMethod("foo", t.resolveMethod("bar"));
+		assertEquals(epoch+1, vm.methodCache.epoch);
+		assertEquals("2", vm.execMain().toString());
+	}
+
+	@Test public void testRedefiningQuickenedPrimitive() {
+		String input =
+			"class T [ - x [^42] ]\n" +
+			"|s| s := 0. 1 to: 5 do: [:i | s := s + i]. ^s";
+		VirtualMachine vm = load(input);
+		assertEquals("15", vm.execMain().toString());
+		STCompiledBlock main = vm.lookupClass("MainClass").resolveMethod("main");
+		assertEquals(Bytecode.SEND_INT_ADD, decodedSend(main, "+"));
+		STMetaClassObject integer = vm.lookupClass("Integer");
+		integer.defineMethod("+", vm.lookupClass("T").resolveMethod("-"));
+		assertEquals("42", vm.execMain().toString());
+		assertEquals(Bytecode.SEND, decodedSend(main, "+"));
+	}
+
+	@Test public void testSendSitesBelongToEachVM() {
+		STSymbolTable symtab = Run.compileCore(true);
+		Run.compileString(symtab,
+			"class T [ - x [^42] ]\n" +
+			"|s| s := 0. 1 to: 5 do: [:i | s := s + i]. ^s", true);
+		VirtualMachine vm1 = new VirtualMachine(symtab);
+		VirtualMachine vm2 = new VirtualMachine(symtab);
+		STCompiledBlock main = vm1.lookupClass("MainClass").resolveMethod("main");
+		assertEquals("15", vm1.execMain().toString());
+		assertEquals("15", vm2.execMain().toString());
+		InlineCache cache = sendCache(main, "+");
+		assertEquals(1, cache.size());
+		assertEquals(0, cache.find(vm2.integerClass, false));
+		vm2.lookupClass("Integer").defineMethod("+", vm2.lookupClass("T").resolveMethod("-"));
+		assertEquals("42", vm2.execMain().toString());
+		assertEquals("15", vm1.execMain().toString());
+		assertEquals(Bytecode.SEND_INT_ADD, decodedSend(main, "+"));
+		assertEquals("42", vm2.execMain().toString());
+		assertEquals(Bytecode.SEND, decodedSend(main, "+"));
+	}
+
+	@Test public void testQuickenIntegerSend() {
+		String input =
+			"class T [ add: a to: b [^a + b] ]\n" +
+			"|t s| t := T new. s := 0.\n" +
+			"1 to: 5 do: [:i | s := t add: s to: i].\n" +
+			"^s";
+		VirtualMachine vm = load(input);
+		assertEquals("15", vm.execMain().toString());
+		STCompiledBlock add = vm.lookupClass("T").resolveMethod("add:to:");
+		assertEquals(Bytecode.SEND_INT_ADD, decodedSend(add, "+"));
+	}
+
+	@Test public void testDequickenOnGuardFailure() {
+		String input =
+			"class T [ add: a to: b [^a + b] ]\n" +
+			"|t s| t := T new. s := 0.\n" +
+			"1 to: 5 do: [:i | s := t add: s to: i].\n" +
+			"^(t add: 1.5 to: 2.25) asString, ' ', s asString";
+		VirtualMachine vm = load(input);
+		assertEquals("3.75 15", vm.execMain().toString());
+		STCompiledBlock add = vm.lookupClass("T").resolveMethod("add:to:");
+		assertEquals(Bytecode.SEND, decodedSend(add, "+"));
+	}
+
+	/** Return the decoded opcode of the first send of selector in blk */
+	public static int decodedSend(STCompiledBlock blk, String selector) {
+		int ip = sendAddress(blk, selector);
+		return ip>=0 ? blk.code[ip] : -1;
+	}
+
+	/** Return the inline cache of the first send of selector in blk */
+	public static InlineCache sendCache(STCompiledBlock blk, String selector) {
+		return (InlineCache)blk.constants[blk.code[sendAddress(blk, selector) + 3]];
+	}
+
+	public static int sendAddress(STCompiledBlock blk, String selector) {
+		int ip = 0;
+		while ( ip<blk.bytecode.length ) {
+			int op = blk.bytecode[ip];
+			if ( op==Bytecode.SEND && blk.literals[Bytecode.getShort(blk.bytecode, ip+3)].equals(selector) ) {
+				return ip;
+			}
+			ip += Bytecode.sizeOfInstruction(op);
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,58 @@
+package smalltalk.test;
+
+import org.junit.Test;
+import smalltalk.vm.exceptions.MessageNotUnderstood;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestTailSends extends BaseTest {
+	@Test public void testDeepTailRecursion() {
+		String input =
+			"class T [\n" +
+			"  count: n acc: a [ n = 0 ifTrue: [^a]. ^self count: n - 1 acc: a + 1 ]\n" +
+			"]\n" +
+			"^T new count: 200000 acc: 0";
+		execAndCheck(input, "200000");
+	}
+
+	@Test public void testTailSendFromBlock() {
+		String input =
+			"class T [\n" +
+			"  down: n [ ^n = 0 ifTrue: [0] ifFalse: [[self down: n - 1] value] ]\n" +
+			"]\n" +
+			"^T new down: 100000";
+		execAndCheck(input, "0");
+	}
+
+	@Test public void testNonLocalReturnThroughTailSend() {
+		String input =
+			"class T [\n" +
+			"  find [ ^self run: [^42] ]\n" +
+			"  run: blk [ ^blk value ]\n" +
+			"]\n" +
+			"^T new find";
+		execAndCheck(input, "42");
+	}
+
+	@Test public void testElidedFramesInStackTrace() {
+		String input =
+			"class T [\n" +
+			"  down: n [ n = 0 ifTrue: [^self foo]. ^self down: n - 1 ]\n" +
+			"]\n" +
+			"^T new down: 5";
+		String stack = "";
+		try {
+			execAndCheck(input, "");
+		}
+		catch (MessageNotUnderstood mnu) {
+			stack = mnu.toString();
+		}
+		String[] lines = stack.split("\n");
+		assertEquals("MessageNotUnderstood: foo is not understood by instance of T", lines[0]);
+		assertTrue(lines[1].trim().startsWith("at") && lines[1].contains("T>>down:"));
+		assertEquals("    ... 5 tail-calling frames elided", lines[2]);
+		assertTrue(lines[3].contains("MainClass>>main"));
+		assertEquals(4, lines.length);
+	}
+}